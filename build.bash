@@ -205,6 +205,7 @@ createbuildsrc() {
 	rm -rf build
 	mkdir -p build/src
 	mkdir -p build/resources
+	mkdir -p build/modules
 
 	execute copyfolder "src/smack/smack-core/src/main/java/" "build/src" "."
 	execute copyfolder "src/smack/smack-core/src/main/resources/" "build/resources" "."
@@ -215,6 +216,13 @@ createbuildsrc() {
 	execute copyfolder "src/smack/smack-experimental/src/main/resources/" "build/resources" "."
 	execute copyfolder "src/smack/smack-resolver-minidns/src/main/java/" "build/src" "."
 
+	# Everything not recorded here ends up in the core module, see createmodules
+	recordmodule "extensions" "src/smack/smack-extensions/src/main/java/" "src"
+	recordmodule "extensions" "src/smack/smack-extensions/src/main/resources/" "resources"
+	recordmodule "experimental" "src/smack/smack-experimental/src/main/java/" "src"
+	recordmodule "experimental" "src/smack/smack-experimental/src/main/resources/" "resources"
+	recordmodule "resolver-minidns" "src/smack/smack-resolver-minidns/src/main/java/" "src"
+
 	execute copyfolder "src/qpid/java" "build/src" "org/apache/qpid/management/common/sasl"
 	execute copyfolder "src/novell-openldap-jldap" "build/src" "."
 	execute copyfolder "src/harmony" "build/src" "."
@@ -228,6 +236,43 @@ createbuildsrc() {
 	copyfolder "src/custom" "build/src/" "."
 }
 
+recordmodule() {
+	cd ${ASMACK_BASE}
+	[ -d "${2}" ] || return 0
+	(
+		cd "${2}"
+		find . -type f -not -path '*/.svn/*' -not -path '*/.git/*'
+	) | sed 's:^\./::' >> "build/modules/${1}.${3}"
+}
+
+createmodules() {
+	echo "## Step 27: assign build/src to the aSmack modules"
+	cd ${ASMACK_BASE}/build
+	local module
+	local type
+	for type in src resources ; do
+		(cd ${type} && find . -type f) | sed 's:^\./::' | sort > modules/all.${type}
+		: > modules/core.${type}.exclude
+		for module in extensions experimental resolver-minidns ; do
+			touch modules/${module}.${type}
+			# Patches may have removed files of a module
+			sort -u modules/${module}.${type} \
+				| comm -12 - modules/all.${type} > modules/${module}.${type}.tmp
+			mv modules/${module}.${type}.tmp modules/${module}.${type}
+			cat modules/${module}.${type} >> modules/core.${type}.exclude
+		done
+		# Files added by patches, like SmackAndroid or the dnsjava
+		# resolver, belong to the core module
+		sort -u modules/core.${type}.exclude \
+			| comm -23 modules/all.${type} - > modules/core.${type}
+		rm modules/all.${type} modules/core.${type}.exclude
+		for module in core extensions experimental resolver-minidns ; do
+			# An empty includesfile would make ant include every file
+			[ -s modules/${module}.${type} ] || echo "asmack-module-is-empty" > modules/${module}.${type}
+		done
+	done
+}
+
 patchsrc() {
 	echo "## Step 25: patch build/src"
 	cd ${ASMACK_BASE}/build/src
@@ -293,7 +338,7 @@ buildandroid() {
 				done
 			fi
 			echo "Building for ${version}"
-			sdks="${sdks} ${version}\n"
+			sdks="${sdks}${version}\n"
 		fi
 
 	done
@@ -311,17 +356,68 @@ buildandroid() {
 	else
 		asmack_suffix="${1}"
 	fi
-	if ! echo -e ${sdks} \
+	# The bytecode only depends on the platform we compile against, so
+	# compile once against the lowest requested SDK and only check the
+	# classes using the Android API against every newer android.jar.
+	# check-android-api emits a separate jar if the output differs.
+	local baseSdk
+	baseSdk=$(echo -e "${sdks}" | sed '/^$/d' | sort -t- -k2 -n | head -n 1)
+	echo "Compiling against ${baseSdk}"
+	if ! ant \
+		-Dandroid.version=${baseSdk} \
+		-Djar.suffix="${asmack_suffix}" \
+		compile-android ; then
+		exit 1
+	fi
+
+	if ! echo -e "${sdks}" \
+		| sed -e '/^$/d' -e "/^${baseSdk}\$/d" \
 		| xargs -I{} -n 1 $XARGS_ARGS ant \
 		-Dandroid.version={} \
+		-Dandroid.base.version=${baseSdk} \
 		-Djar.suffix="${asmack_suffix}" \
-		compile-android ; then
+		check-android-api ; then
+		exit 1
+	fi
+
+	if [[ -n $BUILD_SHRINK ]] ; then
+		for version in $(echo -e "${sdks}") ; do
+			[ -f "build/asmack-${version}${asmack_suffix}.jar" ] || continue
+			shrinkandroid "${version}" "${asmack_suffix}"
+		done
+	fi
+}
+
+shrinkandroid() {
+	local jar="build/asmack-${1}${2}.jar"
+	local shrunkJar="build/asmack-${1}-${BUILD_SHRINK}${2}.jar"
+
+	echo "Shrinking ${jar} with keep profile ${BUILD_SHRINK}"
+	if ! ant \
+		-Dandroid.version=${1} \
+		-Djar.suffix="${2}" \
+		-Dshrink.profile="proguard/${BUILD_SHRINK}.pro" \
+		-Dshrink.name="${BUILD_SHRINK}" \
+		shrink-android ; then
 		exit 1
 	fi
+
+	echo -e "\t\tsize\tclasses\tmethods"
+	jarReport "${jar}" "full"
+	jarReport "${shrunkJar}" "${BUILD_SHRINK}"
+}
+
+jarReport() {
+	local classes
+	local methods
+	classes=$(unzip -Z1 "${1}" '*.class' | sed -e 's/\.class$//' -e 's:/:.:g')
+	methods=$(echo "${classes}" | xargs javap -p -cp "${1}" \
+		| grep -c -E '\)( throws [^;]*)?;$|^  static \{\};$')
+	echo -e "${2}\t\t$(stat -c %s "${1}")\t$(echo "${classes}" | wc -l)\t${methods}"
 }
 
 parseopts() {
-	while getopts a:b:r:c:dhjopux OPTION "$@"; do
+	while getopts a:b:r:c:s:dhjopux OPTION "$@"; do
 		case $OPTION in
 			a)
 				BUILD_ANDROID_VERSIONS="${OPTARG}"
@@ -347,6 +443,13 @@ parseopts() {
 			c)
 				BUILD_CUSTOM="${OPTARG}"
 				;;
+			s)
+				BUILD_SHRINK="${OPTARG}"
+				if [ ! -f "proguard/${BUILD_SHRINK}.pro" ] ; then
+					echo "Keep profile proguard/${BUILD_SHRINK}.pro not found"
+					exit 1
+				fi
+				;;
 			o)
 				BUILD_BOSH=true
 				echo "BOSH support not implemented (yet)"
@@ -359,11 +462,12 @@ parseopts() {
 				PUBLISH_RELEASE=true
 				;;
 			h)
-				echo "$0 -d -c -u -j -r <repo> -b <branch>"
+				echo "$0 -d -c -s -u -j -r <repo> -b <branch>"
 				echo "-d: Enable debug"
 				echo "-j: Build Jingle code"
 				echo "-o: Build BOSH code"
-				echo "-c: Apply custom patchs from patch directory"
+				echo "-c <name>: Apply custom patchs from patch/<name>"
+				echo "-s <name>: Also create a jar shrunk with the keep profile proguard/<name>.pro"
 				echo "-u: DON'T update remote third party resources"
 				echo "-r <repo>: Git repository (can be local or remote) for underlying smack repository"
 				echo "-b <branch>: Git branch used to build aSmack from underlying smack repository"
@@ -513,6 +617,7 @@ setdefaults() {
 	SMACK_LOCAL=false
 	UPDATE_REMOTE=true
 	BUILD_CUSTOM=
+	BUILD_SHRINK=
 	BUILD_JINGLE=false
 	BUILD_BOSH=false
 	SNAPSHOT=false
@@ -561,7 +666,7 @@ setconfig() {
 
 printconfig() {
 	echo "Smack git repository $SMACK_REPO with branch $SMACK_BRANCH"
-	echo -e "SMACK_LOCAL:$SMACK_LOCAL\tUPDATE_REMOTE:$UPDATE_REMOTE\tBUILD_CUSTOM:$BUILD_CUSTOM\tBUILD_JINGLE:$BUILD_JINGLE"
+	echo -e "SMACK_LOCAL:$SMACK_LOCAL\tUPDATE_REMOTE:$UPDATE_REMOTE\tBUILD_CUSTOM:$BUILD_CUSTOM\tBUILD_SHRINK:$BUILD_SHRINK\tBUILD_JINGLE:$BUILD_JINGLE"
 	echo -e "PARALLEL_BUILD:$PARALLEL_BUILD\tBASE:$ASMACK_BASE"
 }
 
@@ -605,6 +710,7 @@ fi
 if [[ -n $BUILD_CUSTOM ]]; then
 	patchsrc "patch/${BUILD_CUSTOM}"
 fi
+createmodules
 build
 
 if cmdExists advzip ; then
@@ -0,0 +1,11 @@
+#!/bin/bash
+
+# Use the smack-config.xml compiled at build time, see CompiledInitializer
+CONFIGURATION=org/jivesoftware/smack/SmackConfiguration.java
+
+if ! grep -q 'processConfigFile(configFileStream, null);' $CONFIGURATION ; then
+	echo "Could not find the processing of smack-config.xml in $CONFIGURATION"
+	exit 1
+fi
+
+sed -i 's:^\( *\)processConfigFile(configFileStream, null);:\1if (de.measite.smack.CompiledInitializer.loadConfiguration(disabledSmackClasses)) {\n\1    configFileStream.close();\n\1}\n\1else {\n\1    processConfigFile(configFileStream, null);\n\1}:' $CONFIGURATION
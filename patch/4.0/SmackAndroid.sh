@@ -3,60 +3,105 @@
 cat > org/jivesoftware/smack/SmackAndroid.java <<EOF
 package org.jivesoftware.smack;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.jivesoftware.smack.util.DNSUtil;
-import org.jivesoftware.smack.util.dns.dnsjava.DNSJavaResolver;
+import org.jivesoftware.smack.util.dns.DNSResolver;
+import org.jivesoftware.smack.util.dns.SRVRecord;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.ResolverConfig;
 
+import de.measite.smack.dns.CachingDNSResolver;
+import de.measite.smack.dns.DNSJavaCachingResolver;
+
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 public class SmackAndroid {
 	private static final Logger LOGGER = Logger.getLogger(SmackAndroid.class.getName());
 
+	/**
+	 * Connectivity changes received within this many milliseconds are
+	 * handled by a single refresh of the resolver configuration.
+	 */
+	private static final long REFRESH_DELAY = 1000;
+
+	/**
+	 * How long a DNS lookup waits for a pending resolver refresh, in
+	 * milliseconds.
+	 */
+	private static final long RESOLVER_READY_TIMEOUT = 5000;
+
 	private static SmackAndroid sSmackAndroid = null;
 
+	// Lookup.refreshDefault may cause network I/O. So in order to prevent a NetworkOnMainThreadException,
+	// we refresh dnsjava in a background thread.
+	// Full stacktrace of the offending call:
+	// Caused by: android.os.NetworkOnMainThreadException
+	// at android.os.StrictMode\$AndroidBlockGuardPolicy.onNetwork(StrictMode.java:1128)
+	// at java.net.InetAddress.lookupHostByName(InetAddress.java:385)
+	// at java.net.InetAddress.getAllByNameImpl(InetAddress.java:236)
+	// at java.net.InetAddress.getByName(InetAddress.java:289)
+	// at org.xbill.DNS.SimpleResolver.<init>(SimpleResolver.java:56)
+	// at org.xbill.DNS.SimpleResolver.<init>(SimpleResolver.java:68)
+	// at org.xbill.DNS.ExtendedResolver.<init>(ExtendedResolver.java:266)
+	// at org.xbill.DNS.Lookup.refreshDefault(Lookup.java:86)
+	// at org.xbill.DNS.Lookup.<clinit>(Lookup.java:97)
+	private static final ScheduledExecutorService sRefreshExecutor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Smack DNS Refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static CountDownLatch sResolverReady = new CountDownLatch(0);
+
+	private static final CachingDNSResolver sDNSCache = new DNSJavaCachingResolver();
+
 	private BroadcastReceiver mConnectivityChangedReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			LOGGER.fine("ConnectivityChange received, calling ResolverConfig.refresh() and Lookup.refreshDefault() in new Thread");
-			// Lookup.refreshDefault may cause network I/O. So in order to prevent a NetworkOnMainThreadException,
-			// we refresh dnsjava in a new thread.
-			// Full stacktrace of the offending call:
-			// Caused by: android.os.NetworkOnMainThreadException
-			// at android.os.StrictMode$AndroidBlockGuardPolicy.onNetwork(StrictMode.java:1128)
-			// at java.net.InetAddress.lookupHostByName(InetAddress.java:385)
-			// at java.net.InetAddress.getAllByNameImpl(InetAddress.java:236)
-			// at java.net.InetAddress.getByName(InetAddress.java:289)
-			// at org.xbill.DNS.SimpleResolver.<init>(SimpleResolver.java:56)
-			// at org.xbill.DNS.SimpleResolver.<init>(SimpleResolver.java:68)
-			// at org.xbill.DNS.ExtendedResolver.<init>(ExtendedResolver.java:266)
-			// at org.xbill.DNS.Lookup.refreshDefault(Lookup.java:86)
-			// at org.xbill.DNS.Lookup.<clinit>(Lookup.java:97)
-			Thread thread = new Thread() {
-					@Override
-					public void run() {
-						ResolverConfig.refresh();
-						Lookup.refreshDefault();
-					}
-				};
-			thread.setDaemon(true);
-			thread.start();
+			LOGGER.fine("ConnectivityChange received, scheduling a refresh of the resolver configuration");
+			scheduleRefresh();
+		}
+	};
+
+	private final Runnable mRefresh = new Runnable() {
+		@Override
+		public void run() {
+			refreshResolver();
 		}
 	};
 
 	private static boolean receiverRegistered = false;
 	private Context mCtx;
 
+	private ScheduledFuture<?> mPendingRefresh;
+	private int mRefreshRequests;
+	private String mLastNetwork;
+	private String[] mLastServers;
+
 	private SmackAndroid(Context ctx) {
 		// Use the application context to prevent "receiver not registered" messages
 		mCtx = ctx.getApplicationContext();
-		DNSUtil.setDNSResolver(DNSJavaResolver.getInstance());
+		sDNSCache.setPersistentFile(new File(mCtx.getCacheDir(), "smack-dns-cache"));
+		DNSUtil.setDNSResolver(new ReadyResolver(sDNSCache));
 	}
 
 	/**
@@ -84,6 +129,30 @@ public class SmackAndroid {
 		}
 	}
 
+	/**
+	 * Waits until the resolver configuration is refreshed after the last
+	 * connectivity change. DNS lookups made through DNSUtil already wait
+	 * for the refresh, at most RESOLVER_READY_TIMEOUT milliseconds.
+	 *
+	 * @return true if the resolver is ready, false if the timeout elapsed
+	 */
+	public static boolean awaitResolverReady(long timeout, TimeUnit unit) throws InterruptedException {
+		CountDownLatch resolverReady;
+		synchronized (SmackAndroid.class) {
+			resolverReady = sResolverReady;
+		}
+		return resolverReady.await(timeout, unit);
+	}
+
+	/**
+	 * Returns the cache of the SRV lookups done by DNSUtil. It's
+	 * invalidated whenever the device switches to another network and kept
+	 * in the application's cache directory across process restarts.
+	 */
+	public static CachingDNSResolver getDNSCache() {
+		return sDNSCache;
+	}
+
 	private void maybeRegisterReceiver() {
 		LOGGER.fine("maybeRegisterReceiver: receiverRegistered=" + receiverRegistered);
 		if (!receiverRegistered) {
@@ -92,5 +161,97 @@ public class SmackAndroid {
 			receiverRegistered = true;
 		}
 	}
+
+	/**
+	 * Schedules a refresh on the refresh thread, unless one is already
+	 * pending. Connectivity often changes several times in a row when a
+	 * device switches between networks, all of these changes are coalesced.
+	 */
+	private void scheduleRefresh() {
+		synchronized (SmackAndroid.class) {
+			mRefreshRequests++;
+			if (sResolverReady.getCount() == 0) {
+				sResolverReady = new CountDownLatch(1);
+			}
+			if (mPendingRefresh == null) {
+				mPendingRefresh = sRefreshExecutor.schedule(mRefresh, REFRESH_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void refreshResolver() {
+		int refreshRequests;
+		synchronized (SmackAndroid.class) {
+			// Changes from now on need another refresh
+			mPendingRefresh = null;
+			refreshRequests = mRefreshRequests;
+		}
+		try {
+			String network = getActiveNetwork();
+			ResolverConfig.refresh();
+			String[] servers = ResolverConfig.getCurrentConfig().servers();
+			if (network != null && network.equals(mLastNetwork) && Arrays.equals(servers, mLastServers)) {
+				LOGGER.fine("Network " + network + " and DNS servers unchanged, not refreshing dnsjava");
+			} else {
+				LOGGER.fine("Network changed to " + network + ", DNS servers " + Arrays.toString(servers));
+				Lookup.refreshDefault();
+				if (mLastServers != null) {
+					// Not on the first refresh, answers loaded from the cache file are revalidated anyway
+					sDNSCache.invalidate();
+				}
+				mLastNetwork = network;
+				mLastServers = servers;
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warning("Could not refresh the resolver configuration: " + e);
+		} finally {
+			synchronized (SmackAndroid.class) {
+				if (refreshRequests == mRefreshRequests) {
+					sResolverReady.countDown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a description of the active network that changes whenever
+	 * the device switches to another network, or null if there is no
+	 * connected network or it can't be determined.
+	 */
+	private String getActiveNetwork() {
+		NetworkInfo info;
+		try {
+			ConnectivityManager cm = (ConnectivityManager) mCtx.getSystemService(Context.CONNECTIVITY_SERVICE);
+			info = cm.getActiveNetworkInfo();
+		} catch (SecurityException e) {
+			// No ACCESS_NETWORK_STATE permission, always refresh
+			return null;
+		}
+		if (info == null || !info.isConnected()) {
+			return null;
+		}
+		return info.getType() + "/" + info.getSubtype() + "/" + info.getExtraInfo();
+	}
+
+	/**
+	 * Delays lookups while the resolver configuration is refreshed, so that
+	 * a reconnect after a network change does not use the DNS servers of
+	 * the previous network.
+	 */
+	private static class ReadyResolver implements DNSResolver {
+		private final DNSResolver mResolver;
+
+		ReadyResolver(DNSResolver resolver) {
+			mResolver = resolver;
+		}
+
+		@Override
+		public List<SRVRecord> lookupSRVRecords(String name) throws Exception {
+			if (!awaitResolverReady(RESOLVER_READY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				LOGGER.warning("Resolver refresh still pending, looking up " + name + " anyway");
+			}
+			return mResolver.lookupSRVRecords(name);
+		}
+	}
 }
 EOF
@@ -0,0 +1,11 @@
+#!/bin/bash
+
+# A socket from de.measite.smack.net.DirectTLSSocketFactory is encrypted
+# before the stream starts, there is no STARTTLS. Report such a connection
+# as secure, so SecurityMode.required doesn't fail it.
+FILE=org/jivesoftware/smack/tcp/XMPPTCPConnection.java
+sed -i 's:^\(\s*\)return isUsingTLS();:\1return isUsingTLS() || socket instanceof javax.net.ssl.SSLSocket;:' "$FILE"
+grep -q 'socket instanceof javax.net.ssl.SSLSocket' "$FILE" || {
+	echo "Could not patch isSecureConnection() in $FILE"
+	exit 1
+}
@@ -0,0 +1,55 @@
+# Keep rules for the classes aSmack and Smack load via reflection. This
+# file is always applied by the shrink-android target, the keep profile
+# selected with 'build.bash -s <name>' (proguard/<name>.pro) decides
+# which parts of the public API are kept.
+
+# Class names are referenced from smack-config.xml, the *.providers
+# files and Class.forName() calls, so don't rename anything.
+-dontobfuscate
+-dontoptimize
+-dontpreverify
+-keepattributes SourceFile,LineNumberTable,Signature,InnerClasses,EnclosingMethod,Exceptions,*Annotation*
+
+# Classes loaded by SmackConfiguration at startup
+-keep class org.jivesoftware.smack.initializer.VmArgInitializer { public <init>(); }
+-keep class org.jivesoftware.smack.ReconnectionManager
+-keep class org.jivesoftware.smack.CustomSmackConfiguration { public static <fields>; }
+-keepclassmembers class * implements org.jivesoftware.smack.initializer.SmackInitializer {
+    public <init>();
+}
+
+# The compiled smack-config.xml, see CompiledInitializer
+-keep class org.jivesoftware.smack.GeneratedSmackConfiguration { public <init>(); }
+
+# Debuggers, see 40-switch-debugging-implementations.patch
+-keep class de.measite.smack.AndroidDebugger { public <init>(...); }
+-keep class org.jivesoftware.smack.debugger.ConsoleDebugger { public <init>(...); }
+
+# SASLAuthentication instantiates the registered mechanisms reflectively
+-keep class * extends org.jivesoftware.smack.sasl.SASLMechanism {
+    public <init>(...);
+}
+
+# Providers are instantiated via Class.newInstance() by the
+# ProviderFileLoader, or by the ProviderManager on first use when they are
+# registered lazily by the compiled providers files. Whether a provider is
+# kept at all is up to the keep profile, but a kept provider must stay
+# instantiable.
+-keepclassmembers class * implements org.jivesoftware.smack.provider.IQProvider {
+    public <init>();
+}
+-keepclassmembers class * implements org.jivesoftware.smack.provider.PacketExtensionProvider {
+    public <init>();
+}
+-keepclassmembers class * extends org.jivesoftware.smack.packet.IQ {
+    public <init>();
+}
+-keepclassmembers class * implements org.jivesoftware.smack.packet.PacketExtension {
+    public <init>();
+}
+
+# Referenced by code that is only used on some platforms
+-dontwarn javax.naming.**
+-dontwarn org.xbill.DNS.spi.**
+-dontwarn org.jivesoftware.smack.util.dns.javax.**
+-dontnote **
@@ -0,0 +1,12 @@
+# Keep profile for apps that only need core messaging: XMPPTCPConnection,
+# chats, the roster and presence, but none of the smack-extensions or
+# smack-experimental managers. Extensions providers that are removed are
+# skipped with a log message by the ProviderFileLoader.
+#
+# Use with: ./build.bash -b <branch> -s minimal
+
+# The initializers of smack-extensions and smack-experimental live in
+# sub-packages of org.jivesoftware.smack.initializer and are optional
+-keep public class !org.jivesoftware.smack.initializer.**,org.jivesoftware.smack.** {
+    public protected *;
+}
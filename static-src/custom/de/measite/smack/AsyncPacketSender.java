@@ -0,0 +1,191 @@
+package de.measite.smack;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Sends packets without blocking the caller.
+ * <p>
+ * XMPPConnection.sendPacket() blocks while the queue of the packet writer is
+ * full. This sender puts packets into a bounded queue of its own, which one
+ * thread hands to sendPacket(). {@link #trySend(Packet)} returns false and
+ * {@link #sendAsync(Packet)} throws instead of blocking when that queue is
+ * full, and {@link WatermarkListener}s are told when the queue fills up and
+ * drains again, so producers can throttle early.
+ * <p>
+ * The future returned by sendAsync() completes once the packet was handed to
+ * the connection, i.e. when it is in the packet writer's queue.
+ */
+public class AsyncPacketSender {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncPacketSender.class.getName());
+
+    /**
+     * Gets notified when the number of queued packets crosses a watermark.
+     * Called on the thread that changed the queue depth, must not block.
+     */
+    public interface WatermarkListener {
+
+        /**
+         * The queue depth reached the high watermark.
+         */
+        void highWatermarkReached(int queueDepth);
+
+        /**
+         * The queue depth dropped to the low watermark after the high watermark
+         * was reached.
+         */
+        void lowWatermarkReached(int queueDepth);
+    }
+
+    private final XMPPConnection connection;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final List<WatermarkListener> listeners = new CopyOnWriteArrayList<WatermarkListener>();
+
+    private boolean aboveHighWatermark;
+
+    /**
+     * Creates a sender with a queue of 500 packets, the queue size of Smack's
+     * packet writer, and watermarks at 80% and 20%.
+     */
+    public AsyncPacketSender(XMPPConnection connection) {
+        this(connection, 500, 400, 100);
+    }
+
+    /**
+     * @param connection the connection to send the packets with
+     * @param capacity the maximum number of queued packets
+     * @param highWatermark the queue depth at which the listeners are told to back off
+     * @param lowWatermark the queue depth at which the listeners are told to resume
+     */
+    public AsyncPacketSender(final XMPPConnection connection, int capacity, int highWatermark, int lowWatermark) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("Invalid watermarks " + lowWatermark + "/" + highWatermark
+                            + " for capacity " + capacity);
+        }
+        this.connection = connection;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "Smack Async Packet Sender ("
+                                                + connection.getConnectionCounter() + ")");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    public void addWatermarkListener(WatermarkListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeWatermarkListener(WatermarkListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the number of packets not yet handed to the connection.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Queues a packet unless the queue is full.
+     *
+     * @return true if the packet was queued
+     */
+    public boolean trySend(Packet packet) {
+        try {
+            sendAsync(packet);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues a packet.
+     *
+     * @return a future that completes with the packet once it was handed to
+     *         the connection, or fails with the exception of sendPacket()
+     * @throws RejectedExecutionException if the queue is full or the sender
+     *         was shut down
+     */
+    public Future<Packet> sendAsync(final Packet packet) {
+        Callable<Packet> send = new Callable<Packet>() {
+            @Override
+            public Packet call() throws Exception {
+                depthChanged(queueDepth.decrementAndGet());
+                connection.sendPacket(packet);
+                return packet;
+            }
+        };
+        depthChanged(queueDepth.incrementAndGet());
+        try {
+            return executor.submit(send);
+        }
+        catch (RejectedExecutionException e) {
+            depthChanged(queueDepth.decrementAndGet());
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting packets. Queued packets are still sent, then the
+     * sender's thread ends.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void depthChanged(int depth) {
+        boolean high;
+        synchronized (this) {
+            if (!aboveHighWatermark && depth >= highWatermark) {
+                aboveHighWatermark = true;
+                high = true;
+            }
+            else if (aboveHighWatermark && depth <= lowWatermark) {
+                aboveHighWatermark = false;
+                high = false;
+            }
+            else {
+                return;
+            }
+        }
+        for (WatermarkListener listener : listeners) {
+            try {
+                if (high) {
+                    listener.highWatermarkReached(depth);
+                }
+                else {
+                    listener.lowWatermarkReached(depth);
+                }
+            }
+            catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception in WatermarkListener", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package de.measite.smack;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.initializer.SmackInitializer;
+import org.jivesoftware.smack.provider.ProviderManager;
+
+/**
+ * Base class of the initializers generated at build time from Smack's XML
+ * configuration and providers files. aSmack's build compiles
+ * smack-config.xml into org.jivesoftware.smack.GeneratedSmackConfiguration
+ * and every UrlInitializer, e.g. ExtensionsInitializer, into a
+ * Generated&lt;name&gt; class in the same package. They register the same
+ * providers and load the same startup classes, but without parsing XML.
+ * Providers are registered lazily by class name, so a provider class is
+ * only loaded once an element of its namespace is parsed.
+ */
+public abstract class CompiledInitializer implements SmackInitializer {
+
+    private static final Logger LOGGER = Logger.getLogger(CompiledInitializer.class.getName());
+
+    private static final String GENERATED_CONFIGURATION = "org.jivesoftware.smack.GeneratedSmackConfiguration";
+
+    private static final String GENERATED_PREFIX = "Generated";
+
+    private static Set<String> disabledSmackClasses = Collections.emptySet();
+
+    /**
+     * Loads the compiled smack-config.xml. Called from the static
+     * initializer of SmackConfiguration.
+     *
+     * @param disabledClasses the Smack classes that must not be loaded
+     * @return false if this build contains no compiled configuration and
+     *         smack-config.xml has to be processed instead
+     * @throws Exception if a non-optional startup class could not be loaded
+     */
+    public static boolean loadConfiguration(Set<String> disabledClasses) throws Exception {
+        Class<?> configuration;
+        try {
+            configuration = Class.forName(GENERATED_CONFIGURATION);
+        }
+        catch (ClassNotFoundException e) {
+            LOGGER.fine("No compiled Smack configuration found, processing smack-config.xml");
+            return false;
+        }
+        disabledSmackClasses = disabledClasses;
+        CompiledInitializer initializer = (CompiledInitializer) configuration.newInstance();
+        List<Exception> exceptions = initializer.initialize();
+        if (!exceptions.isEmpty()) {
+            throw exceptions.get(0);
+        }
+        return true;
+    }
+
+    @Override
+    public List<Exception> initialize() {
+        return initialize(getClass().getClassLoader());
+    }
+
+    @Override
+    public List<Exception> initialize(ClassLoader classLoader) {
+        List<Exception> exceptions = new LinkedList<Exception>();
+        registerProviders();
+        loadStartupClasses(exceptions, classLoader);
+        return exceptions;
+    }
+
+    /**
+     * Registers the providers of the compiled providers file.
+     */
+    protected abstract void registerProviders();
+
+    /**
+     * Loads the startup classes of the compiled configuration file.
+     */
+    protected abstract void loadStartupClasses(List<Exception> exceptions, ClassLoader classLoader);
+
+    /**
+     * Registers an IQ provider by class name. The class is only loaded when
+     * the first matching IQ is parsed, see ProviderManager.
+     */
+    protected static void iqProvider(String elementName, String namespace, String className) {
+        ProviderManager.addLazyIQProvider(elementName, namespace, className);
+    }
+
+    /**
+     * Registers an extension provider by class name. The class is only
+     * loaded when the first matching extension is parsed, see ProviderManager.
+     */
+    protected static void extensionProvider(String elementName, String namespace, String className) {
+        ProviderManager.addLazyExtensionProvider(elementName, namespace, className);
+    }
+
+    protected static boolean isEnabled(String className) {
+        if (disabledSmackClasses.contains(className)) {
+            LOGGER.info("Not loading disabled Smack class " + className);
+            return false;
+        }
+        return true;
+    }
+
+    protected static void initializer(SmackInitializer initializer) {
+        List<Exception> initializerExceptions = initializer.initialize();
+        if (initializerExceptions.isEmpty()) {
+            LOGGER.log(Level.FINE, "Loaded SmackInitializer " + initializer.getClass().getName());
+        }
+        else {
+            for (Exception e : initializerExceptions) {
+                LOGGER.log(Level.SEVERE, "Exception in loadSmackClass", e);
+            }
+        }
+    }
+
+    /**
+     * Runs the static initializer of a startup class that is not a
+     * SmackInitializer, e.g. ReconnectionManager.
+     */
+    protected static void startupClass(Class<?> startupClass, List<Exception> exceptions, ClassLoader classLoader) {
+        try {
+            Class.forName(startupClass.getName(), true, classLoader);
+            LOGGER.log(Level.FINE, "Loaded " + startupClass.getName());
+        }
+        catch (ClassNotFoundException e) {
+            exceptions.add(e);
+        }
+    }
+
+    /**
+     * Loads a startup class by name. Used for classes that may not be part of
+     * this build, like the initializers of smack-extensions when only the
+     * core module is used. The compiled variant of an initializer is
+     * preferred over the initializer itself.
+     */
+    protected static void startupClassByName(String className, boolean optional, List<Exception> exceptions,
+                    ClassLoader classLoader) {
+        Class<?> startupClass;
+        try {
+            startupClass = Class.forName(generatedName(className), true, classLoader);
+        }
+        catch (ClassNotFoundException e) {
+            try {
+                startupClass = Class.forName(className, true, classLoader);
+            }
+            catch (ClassNotFoundException e2) {
+                Level level = optional ? Level.FINE : Level.WARNING;
+                LOGGER.log(level, "A startup class '" + className + "' could not be loaded.");
+                if (!optional) {
+                    exceptions.add(e2);
+                }
+                return;
+            }
+        }
+        if (SmackInitializer.class.isAssignableFrom(startupClass)) {
+            try {
+                initializer((SmackInitializer) startupClass.newInstance());
+            }
+            catch (Exception e) {
+                exceptions.add(e);
+            }
+        }
+        else {
+            LOGGER.log(Level.FINE, "Loaded " + className);
+        }
+    }
+
+    private static String generatedName(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return className.substring(0, lastDot + 1) + GENERATED_PREFIX + className.substring(lastDot + 1);
+    }
+}
@@ -0,0 +1,416 @@
+package de.measite.smack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.Manager;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Sends IQ requests and matches their responses by stanza id.
+ * <p>
+ * Smack waits for an IQ response with a PacketCollector, which is checked
+ * against every incoming packet until the response arrived. With many
+ * requests in flight, e.g. disco#info to every contact, every stanza is run
+ * through every pending request's filter. This manager instead keeps the
+ * pending requests in a map keyed by stanza id and registers a single packet
+ * collector, so a response is matched with one lookup no matter how many
+ * requests are pending. Like the collectors, the responses are matched on the
+ * connection's reader thread, a waiting thread doesn't wait for the packet
+ * listeners. The timeouts run on a timer thread shared by all connections.
+ * <p>
+ * Like Smack's IQReplyFilter, a response is only accepted if it comes from
+ * the entity the request was sent to. An error response fails the request
+ * with an XMPPErrorException, a missing one with a NoResponseException after
+ * the timeout, and a closed connection with a NotConnectedException. An
+ * interrupted {@link #sendRequestAndWait(IQ)} cancels its request and throws
+ * the InterruptedException.
+ * <p>
+ * Callbacks are invoked on the connection's listener thread and must not
+ * block. {@link #sendRequestAndWait(IQ)} may be called from a packet
+ * listener, its response doesn't go through the listener thread.
+ */
+public class IQRequestManager extends Manager {
+
+    private static final Logger LOGGER = Logger.getLogger(IQRequestManager.class.getName());
+
+    private static final Map<XMPPConnection, IQRequestManager> INSTANCES = new WeakHashMap<XMPPConnection, IQRequestManager>();
+
+    private static final ScheduledExecutorService timeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack IQ Request Timeout");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+    /**
+     * Gets notified when a request completes.
+     */
+    public interface Callback {
+
+        /**
+         * A result response arrived.
+         */
+        void onResult(IQ result);
+
+        /**
+         * The request failed, see {@link IQRequestManager} for the exceptions.
+         */
+        void onFailure(Exception exception);
+    }
+
+    public static synchronized IQRequestManager getInstanceFor(XMPPConnection connection) {
+        IQRequestManager manager = INSTANCES.get(connection);
+        if (manager == null) {
+            manager = new IQRequestManager(connection);
+            INSTANCES.put(connection, manager);
+        }
+        return manager;
+    }
+
+    private final ConcurrentMap<String, Request> pending = new ConcurrentHashMap<String, Request>();
+
+    private IQRequestManager(XMPPConnection connection) {
+        super(connection);
+        new ResponseCollector(connection);
+        connection.addConnectionListener(new AbstractConnectionListener() {
+            @Override
+            public void connectionClosed() {
+                failAll();
+            }
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                failAll();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of requests waiting for a response.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Sends a request and waits for its result, like
+     * {@code connection.createPacketCollectorAndSend(request).nextResultOrThrow()}.
+     *
+     * @throws InterruptedException if the thread was interrupted while
+     *         waiting, the request is cancelled
+     */
+    public IQ sendRequestAndWait(IQ request) throws NoResponseException, XMPPErrorException,
+                    NotConnectedException, InterruptedException {
+        long timeout = connection().getPacketReplyTimeout();
+        Request pendingRequest = sendRequest(request, timeout, null);
+        try {
+            // Not relying on the timer, it may run late
+            if (!pendingRequest.latch.await(timeout, TimeUnit.MILLISECONDS) && pendingRequest.cancel(false)) {
+                throw new NoResponseException();
+            }
+        }
+        catch (InterruptedException e) {
+            pendingRequest.cancel(false);
+            throw e;
+        }
+        Exception exception = pendingRequest.exception;
+        if (exception == null) {
+            return pendingRequest.result;
+        }
+        if (exception instanceof XMPPErrorException) {
+            throw (XMPPErrorException) exception;
+        }
+        if (exception instanceof NotConnectedException) {
+            throw (NotConnectedException) exception;
+        }
+        throw (NoResponseException) exception;
+    }
+
+    /**
+     * Sends a request with the connection's packet reply timeout.
+     *
+     * @return a future that completes with the result response
+     */
+    public Request sendRequest(IQ request) throws NotConnectedException {
+        return sendRequest(request, connection().getPacketReplyTimeout(), null);
+    }
+
+    /**
+     * Sends a request with the connection's packet reply timeout.
+     *
+     * @param callback the callback to notify, may be null
+     * @return a future that completes with the result response
+     */
+    public Request sendRequest(IQ request, Callback callback) throws NotConnectedException {
+        return sendRequest(request, connection().getPacketReplyTimeout(), callback);
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param timeout the time to wait for a response in milliseconds
+     * @param callback the callback to notify, may be null
+     * @return a future that completes with the result response
+     * @throws IllegalArgumentException if the request is not of type get or set
+     */
+    public Request sendRequest(IQ request, long timeout, Callback callback) throws NotConnectedException {
+        if (request.getType() != IQ.Type.GET && request.getType() != IQ.Type.SET) {
+            throw new IllegalArgumentException("IQ of type " + request.getType() + " is not a request");
+        }
+        final Request pendingRequest = new Request(request, callback);
+        // Registered before sending, the response may arrive before sendPacket() returns
+        if (pending.put(pendingRequest.id, pendingRequest) != null) {
+            LOGGER.warning("Replacing pending request with duplicate id " + pendingRequest.id);
+        }
+        try {
+            connection().sendPacket(request);
+        }
+        catch (NotConnectedException e) {
+            pending.remove(pendingRequest.id, pendingRequest);
+            throw e;
+        }
+        pendingRequest.timeout = timeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(pendingRequest.id, pendingRequest)) {
+                    pendingRequest.complete(null, new NoResponseException());
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        if (pendingRequest.isDone()) {
+            // Completed while the timeout was scheduled
+            pendingRequest.timeout.cancel(false);
+        }
+        return pendingRequest;
+    }
+
+    private void processResponse(IQ response) {
+        String id = response.getPacketID();
+        if (id == null) {
+            return;
+        }
+        Request request = pending.get(id);
+        if (request == null || !request.acceptsFrom(response.getFrom())) {
+            return;
+        }
+        if (!pending.remove(id, request)) {
+            return;
+        }
+        if (response.getType() == IQ.Type.ERROR) {
+            request.complete(null, new XMPPErrorException(response.getError()));
+        }
+        else {
+            request.complete(response, null);
+        }
+    }
+
+    private void failAll() {
+        List<Request> requests = new ArrayList<Request>(pending.values());
+        for (Request request : requests) {
+            if (pending.remove(request.id, request)) {
+                request.complete(null, new NotConnectedException());
+            }
+        }
+    }
+
+    /**
+     * A pending request, the Future of its result response.
+     */
+    public final class Request implements Future<IQ> {
+        private final String id;
+        private final String to;
+        private final Callback callback;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile ScheduledFuture<?> timeout;
+        private IQ result;
+        private Exception exception;
+        private boolean cancelled;
+
+        private Request(IQ request, Callback callback) {
+            this.id = request.getPacketID();
+            this.to = request.getTo();
+            this.callback = callback;
+        }
+
+        /**
+         * Returns the stanza id of the request.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Checks the sender of a response like IQReplyFilter does.
+         */
+        private boolean acceptsFrom(String from) {
+            if (to == null ? from == null : to.equalsIgnoreCase(from)) {
+                return true;
+            }
+            String user = connection().getUser();
+            if (to == null) {
+                // A request without 'to' goes to the user's account or the server
+                return from.equalsIgnoreCase(connection().getServiceName())
+                                || (user != null && StringUtils.parseBareAddress(from).equalsIgnoreCase(
+                                                StringUtils.parseBareAddress(user)));
+            }
+            // The server answers a request to the user's bare JID without 'from'
+            return from == null && user != null && to.equalsIgnoreCase(StringUtils.parseBareAddress(user));
+        }
+
+        private void complete(IQ result, Exception exception) {
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+                this.result = result;
+                this.exception = exception;
+                latch.countDown();
+            }
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (callback != null) {
+                // Completed on the reader or the timer thread, neither may run the callback
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyCallback();
+                    }
+                }, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void notifyCallback() {
+            IQ result;
+            Exception exception;
+            synchronized (this) {
+                result = this.result;
+                exception = this.exception;
+            }
+            try {
+                if (exception == null) {
+                    callback.onResult(result);
+                }
+                else {
+                    callback.onFailure(exception);
+                }
+            }
+            catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception in IQRequestManager.Callback", e);
+            }
+        }
+
+        /**
+         * Stops waiting for the response. The callback is not notified.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                latch.countDown();
+            }
+            pending.remove(id, this);
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public IQ get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public IQ get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                        TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private synchronized IQ getResult() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (exception != null) {
+                throw new ExecutionException(exception);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Passes the responses to the manager on the reader thread.
+     */
+    private final class ResponseCollector extends PacketCollector {
+
+        private ResponseCollector(XMPPConnection connection) {
+            super(connection, new PacketFilter() {
+                @Override
+                public boolean accept(Packet packet) {
+                    if (!(packet instanceof IQ)) {
+                        return false;
+                    }
+                    IQ.Type type = ((IQ) packet).getType();
+                    return type == IQ.Type.RESULT || type == IQ.Type.ERROR;
+                }
+            }, 0);
+            register();
+        }
+
+        @Override
+        protected void processPacket(Packet packet) {
+            if (packet != null && getPacketFilter().accept(packet)) {
+                processResponse((IQ) packet);
+            }
+        }
+    }
+}
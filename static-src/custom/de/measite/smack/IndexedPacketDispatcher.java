@@ -0,0 +1,303 @@
+package de.measite.smack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Dispatches incoming packets to listeners through a hash index instead of
+ * evaluating the filter of every listener.
+ * <p>
+ * Smack checks every incoming packet against the filter of every packet
+ * listener. A listener added here with an {@link IndexedFilter} is only
+ * checked against packets having the filter's index key, i.e. packets of the
+ * filter's class, with the filter's extension or from the filter's address.
+ * Listeners with other filters are checked against every packet, like
+ * Smack does. The dispatcher itself is a single listener of the connection,
+ * so the listeners are still notified on the connection's listener thread.
+ * <pre>
+ * IndexedPacketDispatcher.getInstanceFor(connection).addPacketListener(listener,
+ *                 IndexedPacketDispatcher.extensionFilter("event", "http://jabber.org/protocol/pubsub#event"));
+ * </pre>
+ * Packet collectors are not affected, IQ responses can be awaited without a
+ * collector with the {@link IQRequestManager}.
+ */
+public class IndexedPacketDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexedPacketDispatcher.class.getName());
+
+    private static final Map<XMPPConnection, IndexedPacketDispatcher> INSTANCES = new WeakHashMap<XMPPConnection, IndexedPacketDispatcher>();
+
+    /**
+     * A filter that only accepts packets having its index key.
+     */
+    public interface IndexedFilter extends PacketFilter {
+
+        /**
+         * Returns the key of the packets this filter may accept, see
+         * {@link IndexedPacketDispatcher#typeKey(Class)},
+         * {@link IndexedPacketDispatcher#extensionKey(String, String)} and
+         * {@link IndexedPacketDispatcher#fromKey(String)}.
+         */
+        String getIndexKey();
+    }
+
+    public static synchronized IndexedPacketDispatcher getInstanceFor(XMPPConnection connection) {
+        IndexedPacketDispatcher dispatcher = INSTANCES.get(connection);
+        if (dispatcher == null) {
+            dispatcher = new IndexedPacketDispatcher();
+            connection.addPacketListener(dispatcher.dispatchListener, null);
+            INSTANCES.put(connection, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    private final Map<String, List<ListenerEntry>> index = new ConcurrentHashMap<String, List<ListenerEntry>>();
+    private final List<ListenerEntry> generic = new CopyOnWriteArrayList<ListenerEntry>();
+    private final Map<PacketListener, ListenerEntry> entries = new ConcurrentHashMap<PacketListener, ListenerEntry>();
+
+    private final PacketListener dispatchListener = new PacketListener() {
+        @Override
+        public void processPacket(Packet packet) {
+            dispatch(packet);
+        }
+    };
+
+    /**
+     * Creates a dispatcher that is not registered with a connection, the
+     * packets are passed to {@link #dispatch(Packet)}.
+     */
+    public IndexedPacketDispatcher() {
+    }
+
+    /**
+     * Adds a listener, replacing an earlier registration of it.
+     *
+     * @param filter the filter, indexed if it is an {@link IndexedFilter},
+     *        null to receive all packets
+     */
+    public synchronized void addPacketListener(PacketListener listener, PacketFilter filter) {
+        if (listener == null) {
+            throw new NullPointerException("Packet listener is null.");
+        }
+        removePacketListener(listener);
+        ListenerEntry entry = new ListenerEntry(listener, filter);
+        if (filter instanceof IndexedFilter && ((IndexedFilter) filter).getIndexKey() != null) {
+            String key = ((IndexedFilter) filter).getIndexKey();
+            List<ListenerEntry> listeners = index.get(key);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<ListenerEntry>();
+                index.put(key, listeners);
+            }
+            listeners.add(entry);
+            entry.key = key;
+        }
+        else {
+            generic.add(entry);
+        }
+        entries.put(listener, entry);
+    }
+
+    public synchronized void removePacketListener(PacketListener listener) {
+        ListenerEntry entry = entries.remove(listener);
+        if (entry == null) {
+            return;
+        }
+        if (entry.key == null) {
+            generic.remove(entry);
+            return;
+        }
+        List<ListenerEntry> listeners = index.get(entry.key);
+        listeners.remove(entry);
+        if (listeners.isEmpty()) {
+            index.remove(entry.key);
+        }
+    }
+
+    /**
+     * Returns the number of listeners with an indexed filter.
+     */
+    public int getIndexedListenerCount() {
+        return entries.size() - generic.size();
+    }
+
+    /**
+     * Returns the number of listeners checked against every packet.
+     */
+    public int getGenericListenerCount() {
+        return generic.size();
+    }
+
+    /**
+     * Notifies the listeners accepting the packet.
+     */
+    public void dispatch(Packet packet) {
+        for (ListenerEntry entry : generic) {
+            entry.notifyListener(packet);
+        }
+        if (index.isEmpty()) {
+            return;
+        }
+        for (String key : packetKeys(packet)) {
+            List<ListenerEntry> listeners = index.get(key);
+            if (listeners != null) {
+                for (ListenerEntry entry : listeners) {
+                    entry.notifyListener(packet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index keys of a packet, each at most once.
+     */
+    private static List<String> packetKeys(Packet packet) {
+        List<String> keys = new ArrayList<String>();
+        for (Class<?> type = packet.getClass(); type != Object.class; type = type.getSuperclass()) {
+            keys.add(typeKey(type));
+        }
+        for (PacketExtension extension : packet.getExtensions()) {
+            String key = extensionKey(extension.getElementName(), extension.getNamespace());
+            if (!keys.contains(key)) {
+                keys.add(key);
+                String namespaceKey = extensionKey(null, extension.getNamespace());
+                if (!keys.contains(namespaceKey)) {
+                    keys.add(namespaceKey);
+                }
+            }
+        }
+        String from = packet.getFrom();
+        if (from != null) {
+            keys.add(fromKey(from));
+            String bareFrom = StringUtils.parseBareAddress(from);
+            if (!bareFrom.equals(from)) {
+                keys.add(fromKey(bareFrom));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the key of packets that are an instance of type. Interfaces
+     * can't be indexed.
+     */
+    public static String typeKey(Class<?> type) {
+        return "class:" + type.getName();
+    }
+
+    /**
+     * Returns the key of packets with an extension.
+     *
+     * @param elementName the element name of the extension, null for any
+     */
+    public static String extensionKey(String elementName, String namespace) {
+        if (elementName == null) {
+            return "ns:" + namespace;
+        }
+        return "ext:" + elementName + ' ' + namespace;
+    }
+
+    /**
+     * Returns the key of packets from an address. A bare address also matches
+     * packets from its full addresses.
+     */
+    public static String fromKey(String address) {
+        return "from:" + address.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns an IndexedFilter, filter must only accept packets with the key.
+     */
+    public static IndexedFilter indexed(final String key, final PacketFilter filter) {
+        return new IndexedFilter() {
+            @Override
+            public String getIndexKey() {
+                return key;
+            }
+
+            @Override
+            public boolean accept(Packet packet) {
+                return filter.accept(packet);
+            }
+
+            @Override
+            public String toString() {
+                return filter + " (indexed by " + key + ")";
+            }
+        };
+    }
+
+    /**
+     * Returns an indexed PacketTypeFilter.
+     */
+    public static IndexedFilter typeFilter(Class<? extends Packet> type) {
+        return indexed(type.isInterface() ? null : typeKey(type), new PacketTypeFilter(type));
+    }
+
+    /**
+     * Returns an indexed PacketExtensionFilter.
+     *
+     * @param elementName the element name of the extension, null for any
+     */
+    public static IndexedFilter extensionFilter(String elementName, String namespace) {
+        return indexed(extensionKey(elementName, namespace), new PacketExtensionFilter(elementName, namespace));
+    }
+
+    /**
+     * Returns an indexed FromMatchesFilter, matching the full address of
+     * packets if address is a full address and their bare address otherwise.
+     */
+    public static IndexedFilter fromFilter(String address) {
+        return indexed(fromKey(address), FromMatchesFilter.create(address));
+    }
+
+    /**
+     * Returns an AndFilter indexed by the key of its first filter.
+     */
+    public static IndexedFilter and(IndexedFilter indexed, PacketFilter... filters) {
+        AndFilter filter = new AndFilter(indexed);
+        for (PacketFilter other : filters) {
+            filter.addFilter(other);
+        }
+        return indexed(indexed.getIndexKey(), filter);
+    }
+
+    private static final class ListenerEntry {
+        private final PacketListener listener;
+        private final PacketFilter filter;
+        private String key;
+
+        private ListenerEntry(PacketListener listener, PacketFilter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        private void notifyListener(Packet packet) {
+            try {
+                if (filter == null || filter.accept(packet)) {
+                    listener.processPacket(packet);
+                }
+            }
+            catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Exception in packet listener", e);
+            }
+        }
+    }
+}
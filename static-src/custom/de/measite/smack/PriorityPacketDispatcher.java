@@ -0,0 +1,367 @@
+package de.measite.smack;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+/**
+ * Dispatches incoming packets to listeners by priority.
+ * <p>
+ * Smack notifies the packet listeners of the incoming packets in the order
+ * they arrived. After a roster load or a MUC join, thousands of presences
+ * arrive and a message or IQ result arriving after them waits until the
+ * listeners processed all of them. This dispatcher puts the packets in one
+ * queue per priority class and always notifies its listeners of the packets
+ * of the highest class first. By default these are IQs, then messages, then
+ * everything else, i.e. presences.
+ * <p>
+ * A queued available or unavailable presence is replaced by a newer one
+ * from the same full JID, the listeners only see the newest presence.
+ * Presences of other types, e.g. subscription requests, are never coalesced.
+ * <p>
+ * The listeners are notified on a thread of this dispatcher. Packets of the
+ * same class are delivered in order, except for coalesced presences taking
+ * the place of the presence they replaced.
+ */
+public class PriorityPacketDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(PriorityPacketDispatcher.class.getName());
+
+    /**
+     * The default priority classes: IQs, messages and everything else.
+     */
+    public static final PacketFilter[] DEFAULT_CLASSES = new PacketFilter[] {
+        new PacketTypeFilter(IQ.class), PacketTypeFilter.MESSAGE };
+
+    private final XMPPConnection connection;
+    private final PacketFilter[] classes;
+    private final ClassQueue[] queues;
+    private final List<ListenerWrapper> listeners = new CopyOnWriteArrayList<ListenerWrapper>();
+    private final ThreadPoolExecutor executor;
+
+    private boolean draining;
+
+    private final PacketListener enqueueListener = new PacketListener() {
+        @Override
+        public void processPacket(Packet packet) {
+            enqueue(packet);
+        }
+    };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            Packet packet;
+            while ((packet = dequeue()) != null) {
+                for (ListenerWrapper listener : listeners) {
+                    listener.notifyListener(packet);
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a dispatcher with the {@link #DEFAULT_CLASSES}.
+     */
+    public PriorityPacketDispatcher(XMPPConnection connection) {
+        this(connection, DEFAULT_CLASSES);
+    }
+
+    /**
+     * @param connection the connection to dispatch the incoming packets of
+     * @param classes the filters of the priority classes, highest first.
+     *        Packets not accepted by any filter are in the lowest class,
+     *        after the given ones.
+     */
+    public PriorityPacketDispatcher(final XMPPConnection connection, PacketFilter... classes) {
+        this.connection = connection;
+        this.classes = classes.clone();
+        queues = new ClassQueue[classes.length + 1];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ClassQueue();
+        }
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "Smack Priority Dispatcher ("
+                                                + connection.getConnectionCounter() + ")");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        connection.addPacketListener(enqueueListener, null);
+    }
+
+    /**
+     * Adds a listener, notified by priority of the packets it accepts.
+     *
+     * @param filter the filter, null to receive all packets
+     */
+    public void addPacketListener(PacketListener listener, PacketFilter filter) {
+        if (listener == null) {
+            throw new NullPointerException("Packet listener is null.");
+        }
+        listeners.add(new ListenerWrapper(listener, filter));
+    }
+
+    public void removePacketListener(PacketListener listener) {
+        for (ListenerWrapper wrapper : listeners) {
+            if (wrapper.listener == listener) {
+                listeners.remove(wrapper);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of priority classes, including the lowest class of
+     * packets not accepted by any filter.
+     */
+    public int getClassCount() {
+        return queues.length;
+    }
+
+    /**
+     * Returns the statistics of a priority class.
+     *
+     * @param priority the index of the class, 0 being the highest
+     */
+    public synchronized QueueStats getStats(int priority) {
+        return new QueueStats(queues[priority]);
+    }
+
+    /**
+     * Stops receiving packets from the connection. Queued packets are still
+     * dispatched, then the dispatcher's thread ends.
+     */
+    public void shutdown() {
+        connection.removePacketListener(enqueueListener);
+        executor.shutdown();
+    }
+
+    private void enqueue(Packet packet) {
+        int priority = classes.length;
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].accept(packet)) {
+                priority = i;
+                break;
+            }
+        }
+        synchronized (this) {
+            queues[priority].add(packet);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(drain);
+        }
+        catch (RejectedExecutionException e) {
+            LOGGER.fine("Dispatcher was shut down, dropping " + packet);
+            synchronized (this) {
+                draining = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the next packet or null if the queues are empty, in which case
+     * the drain task has to be started again by the next enqueue().
+     */
+    private synchronized Packet dequeue() {
+        for (ClassQueue queue : queues) {
+            Packet packet = queue.poll();
+            if (packet != null) {
+                return packet;
+            }
+        }
+        draining = false;
+        return null;
+    }
+
+    private static String coalescingKey(Packet packet) {
+        if (!(packet instanceof Presence) || packet.getFrom() == null) {
+            return null;
+        }
+        Presence.Type type = ((Presence) packet).getType();
+        if (type != Presence.Type.available && type != Presence.Type.unavailable) {
+            return null;
+        }
+        return packet.getFrom();
+    }
+
+    /**
+     * A snapshot of the statistics of a priority class.
+     */
+    public static final class QueueStats {
+        private final int depth;
+        private final int maxDepth;
+        private final long enqueued;
+        private final long dispatched;
+        private final long coalesced;
+        private final long averageWait;
+        private final long maxWait;
+
+        private QueueStats(ClassQueue queue) {
+            depth = queue.entries.size();
+            maxDepth = queue.maxDepth;
+            enqueued = queue.enqueued;
+            dispatched = queue.dispatched;
+            coalesced = queue.coalesced;
+            averageWait = queue.dispatched == 0 ? 0 : queue.totalWait / queue.dispatched;
+            maxWait = queue.maxWait;
+        }
+
+        /**
+         * Returns the number of queued packets.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Returns the highest number of queued packets so far.
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        public long getDispatched() {
+            return dispatched;
+        }
+
+        /**
+         * Returns the number of presences replaced by a newer one while
+         * queued.
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * Returns the average time between queueing and dispatching a packet
+         * in milliseconds.
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        /**
+         * Returns the longest time a packet was queued in milliseconds.
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        @Override
+        public String toString() {
+            return "depth " + depth + " (max " + maxDepth + "), " + enqueued + " enqueued, " + dispatched
+                            + " dispatched, " + coalesced + " coalesced, wait " + averageWait + "ms (max "
+                            + maxWait + "ms)";
+        }
+    }
+
+    /**
+     * The queue of a priority class, guarded by the dispatcher's lock.
+     */
+    private static final class ClassQueue {
+        // ArrayDeque needs API level 9
+        private final Queue<Entry> entries = new LinkedList<Entry>();
+        private final Map<String, Entry> presences = new HashMap<String, Entry>();
+        private int maxDepth;
+        private long enqueued;
+        private long dispatched;
+        private long coalesced;
+        private long totalWait;
+        private long maxWait;
+
+        private void add(Packet packet) {
+            enqueued++;
+            String key = coalescingKey(packet);
+            if (key != null) {
+                Entry queued = presences.get(key);
+                if (queued != null) {
+                    queued.packet = packet;
+                    coalesced++;
+                    return;
+                }
+            }
+            Entry entry = new Entry(packet, key);
+            entries.add(entry);
+            if (key != null) {
+                presences.put(key, entry);
+            }
+            maxDepth = Math.max(maxDepth, entries.size());
+        }
+
+        private Packet poll() {
+            Entry entry = entries.poll();
+            if (entry == null) {
+                return null;
+            }
+            if (entry.key != null) {
+                presences.remove(entry.key);
+            }
+            dispatched++;
+            long wait = System.currentTimeMillis() - entry.time;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            return entry.packet;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final long time = System.currentTimeMillis();
+        private Packet packet;
+
+        private Entry(Packet packet, String key) {
+            this.packet = packet;
+            this.key = key;
+        }
+    }
+
+    private static final class ListenerWrapper {
+        private final PacketListener listener;
+        private final PacketFilter filter;
+
+        private ListenerWrapper(PacketListener listener, PacketFilter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        private void notifyListener(Packet packet) {
+            try {
+                if (filter == null || filter.accept(packet)) {
+                    listener.processPacket(packet);
+                }
+            }
+            catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Exception in packet listener", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package de.measite.smack.dns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.util.dns.DNSResolver;
+import org.jivesoftware.smack.util.dns.SRVRecord;
+import org.jxmpp.util.cache.LruCache;
+
+/**
+ * A DNSResolver that caches the SRV records of another resolver, shared by
+ * all connections using DNSUtil.
+ * <p>
+ * Answers are cached for their TTL, bounded by {@link #setTTLBounds(long, long)}.
+ * Resolvers that don't report TTLs get the default TTL. An expired answer is
+ * still returned for the stale time, while it is revalidated in the
+ * background. A reconnect storm after a server restart therefore needs no DNS
+ * round trips at all. A lookup that fails also falls back to the stale answer.
+ * <p>
+ * The cache can be kept in a file, see {@link #setPersistentFile(File)}, so
+ * that the first connection after a process start doesn't wait for DNS.
+ * <p>
+ * Host addresses are resolved by the socket, i.e. cached by InetAddress,
+ * since a HostAddress only carries the host name.
+ */
+public class CachingDNSResolver implements DNSResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingDNSResolver.class.getName());
+
+    /**
+     * The number of names cached by default.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    /**
+     * The TTL used if the resolver reports none, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Answers from the persistent file that expired longer ago are not used.
+     */
+    private static final long PERSISTED_MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private static final int PERSISTED_MAGIC = 0x534d4443;
+    private static final int PERSISTED_VERSION = 1;
+
+    // The Charset overloads of String need API level 9
+    private static final String UTF8 = "UTF-8";
+
+    private static final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack DNS Revalidation");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+    private final DNSResolver resolver;
+
+    private final LruCache<String, Entry> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long minTTL = 30 * 1000;
+    private volatile long maxTTL = 60 * 60 * 1000;
+    private volatile long staleTime = 60 * 60 * 1000;
+
+    private int generation;
+
+    private File persistentFile;
+    private boolean persistentFileLoaded;
+    private final AtomicBoolean persistPending = new AtomicBoolean();
+
+    /**
+     * Creates a cache for the answers of resolver.
+     *
+     * @param resolver the resolver doing the actual lookups
+     */
+    public CachingDNSResolver(DNSResolver resolver) {
+        this(resolver, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a cache for the answers of resolver.
+     *
+     * @param resolver the resolver doing the actual lookups, may only be null
+     *        if a subclass overrides {@link #resolve(String)}
+     * @param cacheSize the maximum number of cached names
+     */
+    public CachingDNSResolver(DNSResolver resolver, int cacheSize) {
+        this.resolver = resolver;
+        this.cache = new LruCache<String, Entry>(cacheSize);
+    }
+
+    /**
+     * Sets the bounds for the TTL of cached answers. The floor avoids
+     * repeated lookups of names with tiny TTLs, the ceiling makes sure a
+     * changed record is eventually noticed.
+     *
+     * @param minTTL the minimum TTL in milliseconds
+     * @param maxTTL the maximum TTL in milliseconds
+     */
+    public void setTTLBounds(long minTTL, long maxTTL) {
+        if (minTTL < 0 || maxTTL < minTTL) {
+            throw new IllegalArgumentException("Invalid TTL bounds " + minTTL + " - " + maxTTL);
+        }
+        this.minTTL = minTTL;
+        this.maxTTL = maxTTL;
+    }
+
+    /**
+     * Sets how long an expired answer is served while it is revalidated.
+     *
+     * @param staleTime the time in milliseconds, 0 disables serving stale answers
+     */
+    public void setStaleTime(long staleTime) {
+        this.staleTime = staleTime;
+    }
+
+    /**
+     * Keeps the cached answers in file. The file is read by the first lookup,
+     * which is usually done by a connecting thread and not the main thread.
+     * Answers read from the file are used even if they are expired, up to a
+     * day, while they are revalidated in the background.
+     *
+     * @param file the file, or null to not persist the cache
+     */
+    public void setPersistentFile(File file) {
+        synchronized (cache) {
+            persistentFile = file;
+            persistentFileLoaded = false;
+        }
+    }
+
+    /**
+     * Removes all cached answers. Should be called when the network
+     * changes, the new network may resolve names differently.
+     */
+    public void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+            generation++;
+            // The persisted answers are as outdated as the cached ones
+            persistentFileLoaded = true;
+        }
+        LOGGER.fine("DNS cache invalidated");
+        schedulePersist();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public List<SRVRecord> lookupSRVRecords(final String name) throws Exception {
+        loadPersistentFile();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(name);
+        }
+        if (entry != null) {
+            if (now < entry.expires) {
+                hits.incrementAndGet();
+                return copy(entry.records);
+            }
+            if (now < entry.expires + staleTime) {
+                staleHits.incrementAndGet();
+                revalidate(name, entry);
+                return copy(entry.records);
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            return copy(lookup(name));
+        }
+        catch (Exception e) {
+            if (entry == null) {
+                throw e;
+            }
+            LOGGER.log(Level.FINE, "Lookup of " + name + " failed, using the expired answer", e);
+            return copy(entry.records);
+        }
+    }
+
+    /**
+     * Resolves the SRV records of name. Subclasses can override this to
+     * report the TTL of the answer.
+     *
+     * @param name the name to resolve
+     * @return the records and their TTL
+     * @throws Exception if the lookup failed, failures are not cached
+     */
+    protected Answer resolve(String name) throws Exception {
+        return new Answer(resolver.lookupSRVRecords(name), -1);
+    }
+
+    private List<SRVRecord> lookup(String name) throws Exception {
+        int generation;
+        synchronized (cache) {
+            generation = this.generation;
+        }
+        Answer answer = resolve(name);
+        long ttl = answer.ttl < 0 ? DEFAULT_TTL : answer.ttl;
+        ttl = Math.max(minTTL, Math.min(maxTTL, ttl));
+        List<SRVRecord> records = answer.records == null ? Collections.<SRVRecord> emptyList()
+                        : copy(answer.records);
+        synchronized (cache) {
+            // Don't cache answers from before an invalidation
+            if (generation != this.generation) {
+                return records;
+            }
+            cache.put(name, new Entry(records, System.currentTimeMillis() + ttl));
+        }
+        schedulePersist();
+        return records;
+    }
+
+    private void loadPersistentFile() {
+        File file;
+        int generation;
+        synchronized (cache) {
+            if (persistentFileLoaded || persistentFile == null) {
+                return;
+            }
+            persistentFileLoaded = true;
+            file = persistentFile;
+            generation = this.generation;
+        }
+        if (!file.isFile()) {
+            return;
+        }
+
+        Map<String, Entry> entries = new LruCache<String, Entry>(cache.getMaxCacheSize());
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != PERSISTED_MAGIC || buffer.getInt() != PERSISTED_VERSION) {
+                    throw new IOException("Not a DNS cache file");
+                }
+                long now = System.currentTimeMillis();
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    String name = getString(buffer);
+                    long expires = buffer.getLong();
+                    List<SRVRecord> records = new ArrayList<SRVRecord>();
+                    for (int recordCount = buffer.getInt(); recordCount > 0; recordCount--) {
+                        records.add(new SRVRecord(getString(buffer), buffer.getInt(), buffer.getInt(),
+                                        buffer.getInt()));
+                    }
+                    if (expires + PERSISTED_MAX_AGE > now) {
+                        // Serve it while revalidating, even if it's still valid
+                        entries.put(name, new Entry(records, now));
+                    }
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the DNS cache " + file, e);
+            return;
+        }
+        catch (BufferUnderflowException e) {
+            LOGGER.log(Level.WARNING, "Truncated DNS cache " + file, e);
+            return;
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid record in the DNS cache " + file, e);
+            return;
+        }
+
+        synchronized (cache) {
+            if (generation != this.generation) {
+                return;
+            }
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!cache.containsKey(entry.getKey())) {
+                    cache.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        LOGGER.fine("Loaded " + entries.size() + " answers from the DNS cache " + file);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            revalidate(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void schedulePersist() {
+        synchronized (cache) {
+            if (persistentFile == null) {
+                return;
+            }
+        }
+        // Lookups in quick succession are written at once
+        if (!persistPending.compareAndSet(false, true)) {
+            return;
+        }
+        revalidationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                persistPending.set(false);
+                try {
+                    persist();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write the DNS cache", e);
+                }
+            }
+        });
+    }
+
+    private void persist() throws IOException {
+        File file;
+        List<Map.Entry<String, Entry>> entries;
+        synchronized (cache) {
+            file = persistentFile;
+            if (file == null) {
+                return;
+            }
+            entries = new ArrayList<Map.Entry<String, Entry>>(cache.entrySet());
+        }
+
+        int size = 3 * 4;
+        for (Map.Entry<String, Entry> entry : entries) {
+            size += stringSize(entry.getKey()) + 8 + 4;
+            for (SRVRecord record : entry.getValue().records) {
+                size += stringSize(record.getFQDN()) + 3 * 4;
+            }
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(PERSISTED_MAGIC);
+            buffer.putInt(PERSISTED_VERSION);
+            buffer.putInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries) {
+                putString(buffer, entry.getKey());
+                buffer.putLong(entry.getValue().expires);
+                buffer.putInt(entry.getValue().records.size());
+                for (SRVRecord record : entry.getValue().records) {
+                    putString(buffer, record.getFQDN());
+                    buffer.putInt(record.getPort());
+                    buffer.putInt(record.getPriority());
+                    buffer.putInt(record.getWeight());
+                }
+            }
+            buffer.force();
+        }
+        finally {
+            raf.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static int stringSize(String string) throws UnsupportedEncodingException {
+        return 2 + string.getBytes(UTF8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String string) throws UnsupportedEncodingException {
+        byte[] bytes = string.getBytes(UTF8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * DNSUtil sorts the returned list and connections record their
+     * exceptions in the HostAddress, so every caller gets its own copy.
+     */
+    private static List<SRVRecord> copy(List<SRVRecord> records) {
+        List<SRVRecord> copy = new ArrayList<SRVRecord>(records.size());
+        for (SRVRecord record : records) {
+            copy.add(new SRVRecord(record.getFQDN(), record.getPort(), record.getPriority(), record.getWeight()));
+        }
+        return copy;
+    }
+
+    private void revalidate(final String name, final Entry entry) {
+        synchronized (cache) {
+            // One revalidation per entry is enough
+            if (entry.revalidating) {
+                return;
+            }
+            entry.revalidating = true;
+        }
+        revalidationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lookup(name);
+                }
+                catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Revalidation of " + name + " failed", e);
+                    synchronized (cache) {
+                        entry.revalidating = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The records a name resolved to.
+     */
+    public static final class Answer {
+        private final List<SRVRecord> records;
+        private final long ttl;
+
+        /**
+         * @param records the records, an empty list for a name without records
+         * @param ttl the TTL in milliseconds, or -1 if unknown
+         */
+        public Answer(List<SRVRecord> records, long ttl) {
+            this.records = records;
+            this.ttl = ttl;
+        }
+
+        public List<SRVRecord> getRecords() {
+            return records;
+        }
+
+        public long getTTL() {
+            return ttl;
+        }
+    }
+
+    private static final class Entry {
+        private final List<SRVRecord> records;
+        private final long expires;
+        private boolean revalidating;
+
+        private Entry(List<SRVRecord> records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+    }
+}
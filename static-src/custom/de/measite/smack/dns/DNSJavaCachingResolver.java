@@ -0,0 +1,53 @@
+package de.measite.smack.dns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.util.dns.SRVRecord;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * A CachingDNSResolver doing the lookups with dnsjava, which reports the
+ * TTLs of the records. Non-existing names are cached for the minimum TTL.
+ */
+public class DNSJavaCachingResolver extends CachingDNSResolver {
+
+    public DNSJavaCachingResolver() {
+        super(null, DEFAULT_CACHE_SIZE);
+    }
+
+    @Override
+    protected Answer resolve(String name) throws Exception {
+        return resolveSRV(new Lookup(name, Type.SRV), name);
+    }
+
+    /**
+     * Runs a dnsjava lookup of the SRV records of name.
+     */
+    static Answer resolveSRV(Lookup lookup, String name) throws Exception {
+        Record[] records = lookup.run();
+        List<SRVRecord> result = new ArrayList<SRVRecord>();
+        switch (lookup.getResult()) {
+        case Lookup.SUCCESSFUL:
+            break;
+        case Lookup.HOST_NOT_FOUND:
+        case Lookup.TYPE_NOT_FOUND:
+            return new Answer(result, 0);
+        default:
+            throw new Exception("Lookup of " + name + " failed: " + lookup.getErrorString());
+        }
+
+        long ttl = Long.MAX_VALUE;
+        for (Record record : records) {
+            org.xbill.DNS.SRVRecord srvRecord = (org.xbill.DNS.SRVRecord) record;
+            if (srvRecord != null && srvRecord.getTarget() != null) {
+                result.add(new SRVRecord(srvRecord.getTarget().toString(), srvRecord.getPort(),
+                                srvRecord.getPriority(), srvRecord.getWeight()));
+                ttl = Math.min(ttl, srvRecord.getTTL() * 1000);
+            }
+        }
+        return new Answer(result, ttl == Long.MAX_VALUE ? -1 : ttl);
+    }
+}
@@ -0,0 +1,331 @@
+package de.measite.smack.dns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.util.dns.SRVRecord;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+import de.measite.minidns.Client;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Record;
+import de.measite.minidns.record.SRV;
+
+/**
+ * A CachingDNSResolver racing several DNS backends, e.g. dnsjava and MiniDNS
+ * with the system's DNS servers and with some public DNS servers.
+ * <p>
+ * The backend with the lowest average latency is queried first. If it
+ * doesn't answer within twice its average latency, or fails, all other
+ * backends are queried as well. The first answer with records is used. As
+ * long as there are no statistics all backends are queried at once. Losing
+ * queries still complete in the background and update the statistics.
+ * <pre>
+ * DNSUtil.setDNSResolver(new RacingDNSResolver(RacingDNSResolver.dnsjava(),
+ *                 RacingDNSResolver.minidns(), RacingDNSResolver.dnsjava("8.8.8.8")));
+ * </pre>
+ * The MiniDNS backends need the MiniDNS library in addition to dnsjava.
+ */
+public class RacingDNSResolver extends CachingDNSResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(RacingDNSResolver.class.getName());
+
+    /**
+     * The latency a failed query counts as, in milliseconds.
+     */
+    private static final long FAILURE_PENALTY = 5000;
+
+    /**
+     * The minimum time the best backend is queried alone, in milliseconds.
+     */
+    private static final long MIN_HEDGE_DELAY = 50;
+
+    private static final ExecutorService queryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Smack DNS Query");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final List<Backend> backends;
+
+    public RacingDNSResolver(Backend... backends) {
+        super(null, DEFAULT_CACHE_SIZE);
+        if (backends.length == 0) {
+            throw new IllegalArgumentException("No DNS backends given");
+        }
+        List<Backend> list = new ArrayList<Backend>(backends.length);
+        Collections.addAll(list, backends);
+        this.backends = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the backends with their statistics.
+     */
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    @Override
+    protected Answer resolve(String name) throws Exception {
+        List<Backend> ordered = new ArrayList<Backend>(backends);
+        Collections.sort(ordered, new Comparator<Backend>() {
+            @Override
+            public int compare(Backend a, Backend b) {
+                long difference = a.getAverageLatency() - b.getAverageLatency();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        BlockingQueue<Query> results = new LinkedBlockingQueue<Query>();
+        Backend best = ordered.get(0);
+        int running = 0;
+        long hedgeDelay = 0;
+        if (best.hasStatistics()) {
+            queryExecutor.execute(new Query(best, name, results));
+            ordered.remove(0);
+            running++;
+            hedgeDelay = Math.max(MIN_HEDGE_DELAY, 2 * best.getAverageLatency());
+        }
+
+        Answer emptyAnswer = null;
+        Exception lastException = null;
+        long hedgeTime = System.currentTimeMillis() + hedgeDelay;
+        while (true) {
+            if (!ordered.isEmpty() && (running == 0 || System.currentTimeMillis() >= hedgeTime)) {
+                for (Backend backend : ordered) {
+                    queryExecutor.execute(new Query(backend, name, results));
+                    running++;
+                }
+                ordered.clear();
+            }
+            if (running == 0) {
+                break;
+            }
+
+            Query query;
+            if (ordered.isEmpty()) {
+                query = results.take();
+            }
+            else {
+                query = results.poll(hedgeTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (query == null) {
+                    continue;
+                }
+            }
+            running--;
+            if (query.exception != null) {
+                lastException = query.exception;
+            }
+            else if (!query.answer.getRecords().isEmpty()) {
+                LOGGER.fine(query.backend + " answered first for " + name);
+                return query.answer;
+            }
+            else {
+                // Only trusted if no backend knows better
+                emptyAnswer = query.answer;
+            }
+        }
+        if (emptyAnswer != null) {
+            return emptyAnswer;
+        }
+        throw lastException;
+    }
+
+    /**
+     * Returns a backend using dnsjava with the system's DNS servers.
+     */
+    public static Backend dnsjava() {
+        return new Backend("dnsjava") {
+            @Override
+            protected Answer query(String name) throws Exception {
+                return DNSJavaCachingResolver.resolveSRV(new Lookup(name, Type.SRV), name);
+            }
+        };
+    }
+
+    /**
+     * Returns a backend using dnsjava with the given DNS server.
+     */
+    public static Backend dnsjava(final String server) {
+        return new Backend("dnsjava@" + server) {
+            @Override
+            protected Answer query(String name) throws Exception {
+                Lookup lookup = new Lookup(name, Type.SRV);
+                lookup.setResolver(new SimpleResolver(server));
+                // Don't answer from the cache the other dnsjava backends fill
+                lookup.setCache(null);
+                return DNSJavaCachingResolver.resolveSRV(lookup, name);
+            }
+        };
+    }
+
+    /**
+     * Returns a backend using MiniDNS with the system's DNS servers.
+     */
+    public static Backend minidns() {
+        return minidns(null);
+    }
+
+    /**
+     * Returns a backend using MiniDNS with the given DNS server.
+     */
+    public static Backend minidns(final String server) {
+        return new Backend(server == null ? "minidns" : "minidns@" + server) {
+            // Created by the first query, so a missing MiniDNS fails the query and not the resolver
+            private Client client;
+
+            @Override
+            protected Answer query(String name) throws Exception {
+                Client client;
+                synchronized (this) {
+                    if (this.client == null) {
+                        this.client = new Client();
+                    }
+                    client = this.client;
+                }
+                DNSMessage message;
+                if (server == null) {
+                    message = client.query(name, Record.TYPE.SRV, Record.CLASS.IN);
+                }
+                else {
+                    message = client.query(name, Record.TYPE.SRV, Record.CLASS.IN, server);
+                }
+                if (message == null) {
+                    throw new Exception("No answer for " + name);
+                }
+
+                List<SRVRecord> records = new ArrayList<SRVRecord>();
+                switch (message.getResponseCode()) {
+                case NO_ERROR:
+                    break;
+                case NX_DOMAIN:
+                    return new Answer(records, 0);
+                default:
+                    throw new Exception("Lookup of " + name + " failed: " + message.getResponseCode());
+                }
+                long ttl = Long.MAX_VALUE;
+                for (Record record : message.getAnswers()) {
+                    if (record.getPayload() instanceof SRV) {
+                        SRV srv = (SRV) record.getPayload();
+                        records.add(new SRVRecord(srv.getName(), srv.getPort(), srv.getPriority(),
+                                        srv.getWeight()));
+                        ttl = Math.min(ttl, record.getTtl() * 1000);
+                    }
+                }
+                return new Answer(records, ttl == Long.MAX_VALUE ? -1 : ttl);
+            }
+        };
+    }
+
+    /**
+     * A way to look up SRV records, with latency and failure statistics.
+     */
+    public abstract static class Backend {
+        private final String name;
+
+        private long averageLatency = -1;
+        private long successes;
+        private long failures;
+
+        protected Backend(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Looks up the SRV records of name.
+         *
+         * @throws Exception if the backend failed, an empty answer means
+         *         there are no records
+         */
+        protected abstract Answer query(String name) throws Exception;
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the moving average of the latency in milliseconds, failures
+         * count as 5 seconds, 0 if there were no queries yet.
+         */
+        public synchronized long getAverageLatency() {
+            return averageLatency < 0 ? 0 : averageLatency;
+        }
+
+        public synchronized long getSuccesses() {
+            return successes;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        synchronized boolean hasStatistics() {
+            return averageLatency >= 0;
+        }
+
+        synchronized void record(long latency, boolean success) {
+            if (success) {
+                successes++;
+            }
+            else {
+                failures++;
+                latency = Math.max(latency, FAILURE_PENALTY);
+            }
+            averageLatency = averageLatency < 0 ? latency : (averageLatency * 7 + latency * 3) / 10;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + " (" + getAverageLatency() + "ms, " + successes + " ok, " + failures + " failed)";
+        }
+    }
+
+    private static final class Query implements Runnable {
+        private final Backend backend;
+        private final String name;
+        private final BlockingQueue<Query> results;
+        private Answer answer;
+        private Exception exception;
+
+        private Query(Backend backend, String name, BlockingQueue<Query> results) {
+            this.backend = backend;
+            this.name = name;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                answer = backend.query(name);
+            }
+            catch (Exception e) {
+                exception = e;
+            }
+            catch (LinkageError e) {
+                // The backend's library is missing
+                exception = new Exception(backend.getName() + " is not available", e);
+            }
+            backend.record(System.currentTimeMillis() - start, exception == null);
+            if (exception != null) {
+                LOGGER.log(Level.FINE, "Lookup of " + name + " with " + backend.getName() + " failed", exception);
+            }
+            results.add(this);
+        }
+    }
+}
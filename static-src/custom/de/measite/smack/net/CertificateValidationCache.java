@@ -0,0 +1,272 @@
+package de.measite.smack.net;
+
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.jxmpp.util.cache.LruCache;
+
+/**
+ * Remembers successful certificate validations, so a full TLS handshake with
+ * a server that presents the same certificate chain again skips the chain
+ * validation and the hostname verification.
+ * <p>
+ * The trust manager and hostname verifier returned by
+ * {@link #wrap(X509TrustManager)} and {@link #wrap(HostnameVerifier)} look up
+ * the SHA-256 fingerprint of the chain, together with the auth type or the
+ * hostname, and only call the wrapped one on a miss. Only successes are
+ * cached, a chain or hostname that failed is checked again every time, a
+ * chain verified for one hostname is not trusted for another and a result
+ * of one wrapped trust manager or verifier is not used for another. An entry
+ * expires after the maximum age and outside the validity period of any
+ * certificate of the chain.
+ * <p>
+ * The cache doesn't notice changes of the trusted certificates, checking them
+ * would enumerate all CAs on every handshake. Call {@link #clear()} when they
+ * change, on Android when KeyChain.ACTION_STORAGE_CHANGED is broadcast, or
+ * rely on the maximum age.
+ * <pre>
+ * CertificateValidationCache cache = new CertificateValidationCache();
+ * TLSSessionCache tls = new TLSSessionCache(null, new TrustManager[] {
+ *                 cache.wrap(CertificateValidationCache.getDefaultTrustManager()) });
+ * config.setCustomSSLContext(tls.getSSLContext());
+ * config.setHostnameVerifier(cache.wrap(verifier));
+ * </pre>
+ * Resumed TLS sessions skip the validation anyway, this cache speeds up the
+ * full handshakes.
+ */
+public class CertificateValidationCache {
+
+    public static final int DEFAULT_CACHE_SIZE = 100;
+
+    /**
+     * The default maximum age of an entry, one hour.
+     */
+    public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000;
+
+    /**
+     * Returns the platform's default X509TrustManager.
+     */
+    public static X509TrustManager getDefaultTrustManager() throws Exception {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore) null);
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager) {
+                return (X509TrustManager) trustManager;
+            }
+        }
+        throw new IllegalStateException("No default X509TrustManager");
+    }
+
+    private final LruCache<String, Entry> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicInteger wrappers = new AtomicInteger();
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+
+    public CertificateValidationCache() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize the maximum number of cached validations
+     */
+    public CertificateValidationCache(int cacheSize) {
+        cache = new LruCache<String, Entry>(cacheSize);
+    }
+
+    /**
+     * Sets how long a validation is remembered at most.
+     *
+     * @param maxAge the maximum age in milliseconds
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Forgets all validations, e.g. after the trusted certificates changed.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns a trust manager caching the successful server checks of
+     * trustManager.
+     */
+    public X509TrustManager wrap(X509TrustManager trustManager) {
+        return new CachingTrustManager(trustManager);
+    }
+
+    /**
+     * Returns a hostname verifier caching the successful verifications of
+     * hostnameVerifier.
+     */
+    public HostnameVerifier wrap(HostnameVerifier hostnameVerifier) {
+        return new CachingHostnameVerifier(hostnameVerifier);
+    }
+
+    private boolean isCached(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.isValid(System.currentTimeMillis())) {
+            hits.incrementAndGet();
+            return true;
+        }
+        if (entry != null) {
+            cache.remove(key);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private void put(String key, X509Certificate[] chain) {
+        long now = System.currentTimeMillis();
+        long notBefore = Long.MIN_VALUE;
+        long notAfter = now + maxAge;
+        for (X509Certificate certificate : chain) {
+            notBefore = Math.max(notBefore, certificate.getNotBefore().getTime());
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+        }
+        cache.put(key, new Entry(notBefore, notAfter));
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 fingerprint of a chain, or null if it
+     * can't be computed.
+     */
+    private static String fingerprint(Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Certificate certificate : chain) {
+                digest.update(certificate.getEncoded());
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        catch (CertificateEncodingException e) {
+            return null;
+        }
+    }
+
+    private static X509Certificate[] toX509(Certificate[] chain) {
+        X509Certificate[] result = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            if (!(chain[i] instanceof X509Certificate)) {
+                return null;
+            }
+            result[i] = (X509Certificate) chain[i];
+        }
+        return result;
+    }
+
+    private static final class Entry {
+        private final long notBefore;
+        private final long notAfter;
+
+        private Entry(long notBefore, long notAfter) {
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+
+        private boolean isValid(long now) {
+            return now >= notBefore && now < notAfter;
+        }
+    }
+
+    private final class CachingTrustManager implements X509TrustManager {
+        private final X509TrustManager trustManager;
+        // Another wrapped trust manager may trust other anchors
+        private final String prefix = "trust" + wrappers.incrementAndGet() + ' ';
+
+        private CachingTrustManager(X509TrustManager trustManager) {
+            this.trustManager = trustManager;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            trustManager.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            String fingerprint = fingerprint(chain);
+            String key = prefix + authType + ' ' + fingerprint;
+            if (fingerprint != null && isCached(key)) {
+                return;
+            }
+            trustManager.checkServerTrusted(chain, authType);
+            if (fingerprint != null) {
+                put(key, chain);
+            }
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return trustManager.getAcceptedIssuers();
+        }
+    }
+
+    private final class CachingHostnameVerifier implements HostnameVerifier {
+        private final HostnameVerifier hostnameVerifier;
+        private final String prefix = "host" + wrappers.incrementAndGet() + ' ';
+
+        private CachingHostnameVerifier(HostnameVerifier hostnameVerifier) {
+            this.hostnameVerifier = hostnameVerifier;
+        }
+
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            X509Certificate[] chain = null;
+            try {
+                chain = toX509(session.getPeerCertificates());
+            }
+            catch (SSLPeerUnverifiedException e) {
+                // Up to the wrapped verifier
+            }
+            String fingerprint = chain == null ? null : fingerprint(chain);
+            String key = prefix + (hostname == null ? null : hostname.toLowerCase(Locale.US)) + ' ' + fingerprint;
+            if (fingerprint != null && hostname != null && isCached(key)) {
+                return true;
+            }
+            boolean verified = hostnameVerifier.verify(hostname, session);
+            if (verified && fingerprint != null && hostname != null) {
+                put(key, chain);
+            }
+            return verified;
+        }
+    }
+}
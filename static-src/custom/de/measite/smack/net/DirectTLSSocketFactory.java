@@ -0,0 +1,274 @@
+package de.measite.smack.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.DNSResolver;
+import org.jivesoftware.smack.util.dns.SRVRecord;
+
+/**
+ * A SocketFactory connecting with direct TLS (XEP-0368) if the service
+ * supports it, saving the STARTTLS round trips.
+ * <p>
+ * The factory looks up the _xmpps-client._tcp SRV records of the service with
+ * DNSUtil's resolver and returns a socket that completed the TLS handshake
+ * with one of their hosts. If there are no records or no host can be
+ * connected, the factory falls back to a plain socket to the host Smack asked
+ * for, and the connection uses STARTTLS as usual. Which mode worked is
+ * remembered per service, a service without direct TLS is only checked again
+ * after a day.
+ * <pre>
+ * config.setSocketFactory(new DirectTLSSocketFactory(config));
+ * </pre>
+ * The handshake uses the custom SSLContext of the configuration, or the one
+ * of {@link TLSSessionCache#getDefault()} if there is none, and the
+ * certificate is verified for the service name with the configuration's
+ * HostnameVerifier, like STARTTLS does. Both are read on every connect.
+ * <p>
+ * Smack doesn't negotiate STARTTLS on a stream that is already encrypted,
+ * aSmack's XMPPTCPConnection reports such a connection as secure, so
+ * SecurityMode.required accepts it.
+ */
+public class DirectTLSSocketFactory extends SocketFactory {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectTLSSocketFactory.class.getName());
+
+    /**
+     * How long a service that didn't support direct TLS uses STARTTLS before
+     * direct TLS is tried again, in milliseconds.
+     */
+    private static final long STARTTLS_RECHECK_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /**
+     * The way a connection to a service is secured.
+     */
+    public enum Mode {
+        DIRECT_TLS,
+        STARTTLS
+    }
+
+    private static final Map<String, RememberedMode> modes = new ConcurrentHashMap<String, RememberedMode>();
+
+    private final ConnectionConfiguration config;
+
+    private volatile int connectTimeout = 30 * 1000;
+
+    /**
+     * @param config the configuration of the connection using the factory
+     */
+    public DirectTLSSocketFactory(ConnectionConfiguration config) {
+        this.config = config;
+    }
+
+    /**
+     * Sets the timeout of a single connection attempt.
+     *
+     * @param timeout the timeout in milliseconds, 0 for no timeout
+     */
+    public void setConnectTimeout(int timeout) {
+        connectTimeout = timeout;
+    }
+
+    /**
+     * Returns the mode that worked for a service the last time, or null if
+     * it is not known.
+     */
+    public static Mode getMode(String serviceName) {
+        RememberedMode mode = modes.get(serviceName);
+        return mode == null ? null : mode.mode;
+    }
+
+    /**
+     * Forgets the modes of all services.
+     */
+    public static void clearModes() {
+        modes.clear();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+        String serviceName = config.getServiceName();
+        RememberedMode mode = modes.get(serviceName);
+        if (mode == null || mode.mode == Mode.DIRECT_TLS
+                        || mode.time + STARTTLS_RECHECK_INTERVAL < System.currentTimeMillis()) {
+            try {
+                Socket socket = connectDirectTLS(serviceName);
+                modes.put(serviceName, new RememberedMode(Mode.DIRECT_TLS));
+                return socket;
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.FINE, "Direct TLS to " + serviceName + " failed, falling back to STARTTLS", e);
+                modes.put(serviceName, new RememberedMode(Mode.STARTTLS));
+            }
+        }
+        return connectPlain(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+        return connectPlain(new InetSocketAddress(address, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+                    throws IOException, UnknownHostException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                    throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port), connectTimeout);
+        return socket;
+    }
+
+    private Socket connectPlain(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(address, connectTimeout);
+        return socket;
+    }
+
+    /**
+     * Connects to the first direct TLS host of the service that completes
+     * the handshake.
+     */
+    private Socket connectDirectTLS(String serviceName) throws IOException {
+        List<SRVRecord> records = lookupDirectTLSHosts(serviceName);
+        if (records.isEmpty()) {
+            throw new IOException("No _xmpps-client._tcp records for " + serviceName);
+        }
+        IOException lastException = null;
+        for (SRVRecord record : records) {
+            try {
+                return connectDirectTLS(serviceName, record.getFQDN(), record.getPort());
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.FINE, "Direct TLS to " + record + " failed", e);
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    private List<SRVRecord> lookupDirectTLSHosts(String serviceName) throws IOException {
+        DNSResolver resolver = DNSUtil.getDNSResolver();
+        if (resolver == null) {
+            return Collections.emptyList();
+        }
+        List<SRVRecord> records;
+        try {
+            records = new ArrayList<SRVRecord>(resolver.lookupSRVRecords("_xmpps-client._tcp." + serviceName));
+        }
+        catch (Exception e) {
+            IOException exception = new IOException("Lookup of the direct TLS hosts of " + serviceName + " failed");
+            exception.initCause(e);
+            throw exception;
+        }
+        // A target of "." means the service is decidedly not available
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (".".equals(records.get(i).getFQDN())) {
+                records.remove(i);
+            }
+        }
+        Collections.sort(records);
+        return records;
+    }
+
+    private Socket connectDirectTLS(String serviceName, String host, int port) throws IOException {
+        SSLContext sslContext = config.getCustomSSLContext();
+        if (sslContext == null) {
+            sslContext = TLSSessionCache.getDefault().getSSLContext();
+        }
+        Socket plain = connectPlain(new InetSocketAddress(host, port));
+        SSLSocket socket = null;
+        boolean connected = false;
+        try {
+            // The service name is used for SNI and as key of the session cache
+            socket = (SSLSocket) sslContext.getSocketFactory().createSocket(plain, serviceName, port, true);
+            HostnameVerifier verifier = config.getHostnameVerifier();
+            if (verifier == null && !enableEndpointIdentification(socket)) {
+                verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+            }
+            // A host that doesn't speak TLS would never complete the handshake
+            int soTimeout = plain.getSoTimeout();
+            socket.setSoTimeout(connectTimeout);
+            socket.startHandshake();
+            socket.setSoTimeout(soTimeout);
+            if (verifier != null && !verifier.verify(serviceName, socket.getSession())) {
+                throw new SSLPeerUnverifiedException("Certificate of " + host
+                                + " does not authenticate " + serviceName);
+            }
+            connected = true;
+            return socket;
+        }
+        finally {
+            if (!connected) {
+                // Closing the TLS socket closes the plain one
+                close(socket != null ? socket : plain);
+            }
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close " + socket, e);
+        }
+    }
+
+    /**
+     * Lets the TLS provider verify the certificate for the service name.
+     * SSLParameters needs API level 9 and its endpoint identification API
+     * level 24, so they are called by reflection.
+     *
+     * @return false if the platform doesn't support it
+     */
+    private static boolean enableEndpointIdentification(SSLSocket socket) {
+        try {
+            Class<?> parametersClass = Class.forName("javax.net.ssl.SSLParameters");
+            Object parameters = SSLSocket.class.getMethod("getSSLParameters").invoke(socket);
+            parametersClass.getMethod("setEndpointIdentificationAlgorithm", String.class).invoke(parameters, "HTTPS");
+            SSLSocket.class.getMethod("setSSLParameters", parametersClass).invoke(socket, parameters);
+            return true;
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.FINEST, "No endpoint identification, using the default hostname verifier", e);
+            return false;
+        }
+    }
+
+    private static final class RememberedMode {
+        private final Mode mode;
+        private final long time = System.currentTimeMillis();
+
+        private RememberedMode(Mode mode) {
+            this.mode = mode;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package de.measite.smack.net;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.HostAddress;
+
+/**
+ * A SocketFactory racing connection attempts to several addresses, like
+ * described in RFC 8305 (Happy Eyeballs).
+ * <p>
+ * Smack tries the hosts of a service one at a time and waits for the socket
+ * timeout on every host that doesn't answer. This factory instead starts a
+ * connection attempt to the next address whenever the previous attempt
+ * failed or didn't succeed within the connection attempt delay. The first
+ * socket that connects is used, all other attempts are closed. The
+ * addresses of a host are tried alternating between IPv6 and IPv4.
+ * <p>
+ * Created with a service name, the attempts span all hosts DNSUtil resolves
+ * for the service, in the order of their SRV priority and weight. The socket
+ * may then be connected to another host than the one Smack asked for, which
+ * is fine since Smack verifies the certificate against the service name.
+ * <p>
+ * The address that won is remembered and tried first by the next race, so a
+ * reconnect usually takes a single round trip. Addresses that failed are
+ * skipped for a few seconds, which makes Smack's iteration over the
+ * remaining hosts fail fast after a lost race.
+ * <pre>
+ * config.setSocketFactory(new HappyEyeballsSocketFactory(config.getServiceName()));
+ * </pre>
+ */
+public class HappyEyeballsSocketFactory extends SocketFactory {
+
+    private static final Logger LOGGER = Logger.getLogger(HappyEyeballsSocketFactory.class.getName());
+
+    /**
+     * How long a failed address is skipped, in milliseconds.
+     */
+    private static final long FAILED_ADDRESS_TIMEOUT = 10 * 1000;
+
+    private static final ExecutorService connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Smack Connection Attempt");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Map<String, InetSocketAddress> winners = new ConcurrentHashMap<String, InetSocketAddress>();
+
+    private final String serviceName;
+
+    private final Map<InetSocketAddress, Long> failedAddresses = new ConcurrentHashMap<InetSocketAddress, Long>();
+
+    private volatile int connectionAttemptDelay = 250;
+    private volatile int connectTimeout = 30 * 1000;
+
+    /**
+     * Creates a factory racing the addresses of the requested host.
+     */
+    public HappyEyeballsSocketFactory() {
+        this(null);
+    }
+
+    /**
+     * Creates a factory racing the addresses of all hosts of an XMPP service.
+     *
+     * @param serviceName the service name, i.e. the domain of the user's JID
+     */
+    public HappyEyeballsSocketFactory(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Sets the time after which the next address is tried if the current
+     * attempt neither succeeded nor failed. RFC 8305 recommends 250ms.
+     *
+     * @param delay the delay in milliseconds
+     */
+    public void setConnectionAttemptDelay(int delay) {
+        connectionAttemptDelay = delay;
+    }
+
+    /**
+     * Sets the timeout of a single connection attempt.
+     *
+     * @param timeout the timeout in milliseconds, 0 for no timeout
+     */
+    public void setConnectTimeout(int timeout) {
+        connectTimeout = timeout;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+        List<HostAddress> hosts;
+        String key;
+        if (serviceName != null) {
+            hosts = serviceHosts(host, port);
+            key = serviceName;
+        }
+        else {
+            hosts = Collections.singletonList(new HostAddress(host, port));
+            key = host + ':' + port;
+        }
+        return race(key, hosts);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+        return race(address.getHostAddress() + ':' + port, Collections.singletonList(
+                        new HostAddress(address.getHostAddress(), port)));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+                    throws IOException, UnknownHostException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                    throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port), connectTimeout);
+        return socket;
+    }
+
+    /**
+     * Returns the hosts of the service, starting with the requested one.
+     * Hosts before it were already tried by Smack.
+     */
+    private List<HostAddress> serviceHosts(String host, int port) {
+        List<HostAddress> hosts = new ArrayList<HostAddress>();
+        hosts.add(new HostAddress(host, port));
+        boolean found = false;
+        for (HostAddress hostAddress : DNSUtil.resolveXMPPDomain(serviceName)) {
+            if (hostAddress.getFQDN().equals(host) && hostAddress.getPort() == port) {
+                found = true;
+            }
+            else if (found) {
+                hosts.add(hostAddress);
+            }
+        }
+        return hosts;
+    }
+
+    private Socket race(String key, List<HostAddress> hosts) throws IOException {
+        Candidates candidates = new Candidates(hosts, winners.get(key));
+        BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+        List<Attempt> attempts = new LinkedList<Attempt>();
+        IOException lastException = null;
+        int running = 0;
+        long nextAttempt = 0;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if ((running == 0 || now >= nextAttempt) && candidates.hasNext()) {
+                    InetSocketAddress address = candidates.next();
+                    if (address == null) {
+                        if (candidates.lastException != null) {
+                            lastException = candidates.lastException;
+                        }
+                        continue;
+                    }
+                    Attempt attempt = new Attempt(address, results);
+                    attempts.add(attempt);
+                    connectExecutor.execute(attempt);
+                    running++;
+                    nextAttempt = now + connectionAttemptDelay;
+                    continue;
+                }
+                if (running == 0) {
+                    if (lastException == null) {
+                        lastException = new SocketException("All addresses of " + hosts + " failed recently");
+                    }
+                    throw lastException;
+                }
+
+                Attempt result;
+                if (candidates.hasNext()) {
+                    result = results.poll(nextAttempt - now, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    result = results.take();
+                }
+                if (result == null) {
+                    continue;
+                }
+                running--;
+                if (result.exception == null) {
+                    LOGGER.fine("Connected to " + result.address + " for " + key);
+                    winners.put(key, result.address);
+                    attempts.remove(result);
+                    return result.socket;
+                }
+                LOGGER.log(Level.FINE, "Connecting to " + result.address + " failed", result.exception);
+                failedAddresses.put(result.address, System.currentTimeMillis());
+                lastException = result.exception;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while connecting to " + hosts);
+        }
+        finally {
+            // Aborts the pending attempts and closes the sockets of the losers
+            for (Attempt attempt : attempts) {
+                closeQuietly(attempt.socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.FINEST, "Could not close socket", e);
+        }
+    }
+
+    /**
+     * The addresses to try. A host is only resolved once its addresses are
+     * needed, its IPv6 and IPv4 addresses are interleaved.
+     */
+    private final class Candidates {
+        private final Iterator<HostAddress> hosts;
+        private final LinkedList<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
+        private final List<InetSocketAddress> tried = new ArrayList<InetSocketAddress>();
+        private IOException lastException;
+
+        private Candidates(List<HostAddress> hosts, InetSocketAddress winner) {
+            this.hosts = hosts.iterator();
+            if (winner != null) {
+                addresses.add(winner);
+            }
+        }
+
+        private boolean hasNext() {
+            return !addresses.isEmpty() || hosts.hasNext();
+        }
+
+        /**
+         * Returns the next address or null if the next host couldn't be
+         * resolved or all of its addresses failed recently.
+         */
+        private InetSocketAddress next() {
+            if (addresses.isEmpty()) {
+                HostAddress host = hosts.next();
+                try {
+                    addresses.addAll(interleave(InetAddress.getAllByName(host.getFQDN()), host.getPort()));
+                }
+                catch (UnknownHostException e) {
+                    host.setException(e);
+                    lastException = e;
+                    return null;
+                }
+            }
+            while (!addresses.isEmpty()) {
+                InetSocketAddress address = addresses.removeFirst();
+                if (tried.contains(address)) {
+                    continue;
+                }
+                tried.add(address);
+                Long failed = failedAddresses.get(address);
+                if (failed != null && failed + FAILED_ADDRESS_TIMEOUT > System.currentTimeMillis()) {
+                    continue;
+                }
+                return address;
+            }
+            return null;
+        }
+
+        private List<InetSocketAddress> interleave(InetAddress[] resolved, int port) {
+            List<InetSocketAddress> ipv6 = new LinkedList<InetSocketAddress>();
+            List<InetSocketAddress> ipv4 = new LinkedList<InetSocketAddress>();
+            for (InetAddress address : resolved) {
+                (address instanceof Inet6Address ? ipv6 : ipv4).add(new InetSocketAddress(address, port));
+            }
+            List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(resolved.length);
+            while (!ipv6.isEmpty() || !ipv4.isEmpty()) {
+                if (!ipv6.isEmpty()) {
+                    result.add(ipv6.remove(0));
+                }
+                if (!ipv4.isEmpty()) {
+                    result.add(ipv4.remove(0));
+                }
+            }
+            return result;
+        }
+    }
+
+    private final class Attempt implements Runnable {
+        private final InetSocketAddress address;
+        private final BlockingQueue<Attempt> results;
+        private final Socket socket = new Socket();
+        private IOException exception;
+
+        private Attempt(InetSocketAddress address, BlockingQueue<Attempt> results) {
+            this.address = address;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.connect(address, connectTimeout);
+            }
+            catch (IOException e) {
+                exception = e;
+            }
+            results.add(this);
+        }
+    }
+}
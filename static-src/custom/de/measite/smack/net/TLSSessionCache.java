@@ -0,0 +1,283 @@
+package de.measite.smack.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * An SSLContext shared by connections, so TLS sessions are resumed on
+ * reconnects.
+ * <p>
+ * Without a custom SSLContext, XMPPTCPConnection creates a new SSLContext for
+ * every STARTTLS. Its session cache is empty, so every reconnect does a full
+ * handshake with key exchange and certificate validation. All connections
+ * using the SSLContext of this cache share its client session cache, and a
+ * connection to a server it has a valid session with resumes that session,
+ * with a session ID or a session ticket, whatever the TLS provider supports.
+ * <pre>
+ * config.setCustomSSLContext(TLSSessionCache.getDefault().getSSLContext());
+ * </pre>
+ * Smack uses a custom SSLContext as is, the key store settings of the
+ * ConnectionConfiguration are ignored. Client certificates need a cache
+ * created with the key managers.
+ * <p>
+ * The cache counts the handshakes of its sockets and measures their
+ * duration, from the creation of the socket until the handshake completed.
+ */
+public class TLSSessionCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TLSSessionCache.class.getName());
+
+    private static TLSSessionCache defaultCache;
+
+    /**
+     * Returns a cache with the default key and trust managers.
+     */
+    public static synchronized TLSSessionCache getDefault() {
+        if (defaultCache == null) {
+            try {
+                defaultCache = new TLSSessionCache(null, null);
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("TLS is not available", e);
+            }
+        }
+        return defaultCache;
+    }
+
+    private final SSLContext delegate;
+    private final SSLContext context;
+
+    private long fullHandshakes;
+    private long resumedHandshakes;
+    private long fullHandshakeTime;
+    private long resumedHandshakeTime;
+
+    /**
+     * @param keyManagers the key managers, null for the default ones
+     * @param trustManagers the trust managers, null for the default ones
+     */
+    public TLSSessionCache(KeyManager[] keyManagers, TrustManager[] trustManagers)
+                    throws NoSuchAlgorithmException, KeyManagementException {
+        delegate = SSLContext.getInstance("TLS");
+        delegate.init(keyManagers, trustManagers, new SecureRandom());
+        context = new SSLContext(new CountingSSLContextSpi(), delegate.getProvider(), delegate.getProtocol()) {
+        };
+    }
+
+    /**
+     * Returns the SSLContext to set as custom SSLContext of the connection
+     * configurations.
+     */
+    public SSLContext getSSLContext() {
+        return context;
+    }
+
+    /**
+     * Sets how long a session may be resumed.
+     *
+     * @param seconds the timeout in seconds, 0 for no limit
+     */
+    public void setSessionTimeout(int seconds) {
+        delegate.getClientSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     * Sets the maximum number of cached sessions.
+     *
+     * @param size the number of sessions, 0 for no limit
+     */
+    public void setSessionCacheSize(int size) {
+        delegate.getClientSessionContext().setSessionCacheSize(size);
+    }
+
+    /**
+     * Forgets all sessions, e.g. after the trusted certificates changed.
+     */
+    public void invalidate() {
+        SSLSessionContext sessions = delegate.getClientSessionContext();
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements();) {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    public synchronized long getFullHandshakes() {
+        return fullHandshakes;
+    }
+
+    public synchronized long getResumedHandshakes() {
+        return resumedHandshakes;
+    }
+
+    /**
+     * Returns the share of resumed handshakes between 0 and 1.
+     */
+    public synchronized double getResumptionRate() {
+        long handshakes = fullHandshakes + resumedHandshakes;
+        return handshakes == 0 ? 0 : (double) resumedHandshakes / handshakes;
+    }
+
+    /**
+     * Returns the average duration of a full handshake in milliseconds.
+     */
+    public synchronized long getAverageFullHandshakeTime() {
+        return fullHandshakes == 0 ? 0 : fullHandshakeTime / fullHandshakes;
+    }
+
+    /**
+     * Returns the average duration of a resumed handshake in milliseconds.
+     */
+    public synchronized long getAverageResumedHandshakeTime() {
+        return resumedHandshakes == 0 ? 0 : resumedHandshakeTime / resumedHandshakes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TLSSessionCache (" + fullHandshakes + " full handshakes, avg " + getAverageFullHandshakeTime()
+                        + "ms, " + resumedHandshakes + " resumed, avg " + getAverageResumedHandshakeTime() + "ms)";
+    }
+
+    private synchronized void handshakeCompleted(boolean resumed, long duration) {
+        if (resumed) {
+            resumedHandshakes++;
+            resumedHandshakeTime += duration;
+        }
+        else {
+            fullHandshakes++;
+            fullHandshakeTime += duration;
+        }
+    }
+
+    private Socket watch(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                // Renegotiations are not counted
+                event.getSocket().removeHandshakeCompletedListener(this);
+                long duration = (System.nanoTime() - start) / 1000000;
+                // A resumed session keeps the creation time of the handshake that established it
+                boolean resumed = event.getSession().getCreationTime() < startMillis;
+                LOGGER.fine((resumed ? "Resumed" : "Full") + " TLS handshake with "
+                                + event.getSession().getPeerHost() + " took " + duration + "ms");
+                TLSSessionCache.this.handshakeCompleted(resumed, duration);
+            }
+        });
+        return socket;
+    }
+
+    private final class CountingSSLContextSpi extends SSLContextSpi {
+
+        private final SSLSocketFactory socketFactory = new CountingSSLSocketFactory();
+
+        @Override
+        protected void engineInit(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom random)
+                        throws KeyManagementException {
+            throw new KeyManagementException("TLSSessionCache is already initialized");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return socketFactory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return delegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return delegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+    }
+
+    private final class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        private SSLSocketFactory factory() {
+            return delegate.getSocketFactory();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return factory().getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory().getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return watch(factory().createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return watch(factory().createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return watch(factory().createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                        throws IOException {
+            return watch(factory().createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return watch(factory().createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                        throws IOException {
+            return watch(factory().createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
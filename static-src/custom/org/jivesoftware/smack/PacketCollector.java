@@ -0,0 +1,559 @@
+/**
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+
+/**
+ * Provides a mechanism to collect packets into a result queue that pass a
+ * specified filter. The collector lets you perform blocking and polling
+ * operations on the result queue. So, a PacketCollector is more suitable to
+ * use than a {@link PacketListener} when you need to wait for a specific
+ * result.<p>
+ *
+ * Each packet collector will queue up a configured number of packets for processing before
+ * older packets are automatically dropped.  The default number is retrieved by
+ * {@link SmackConfiguration#getPacketCollectorSize()}.
+ * <p>
+ * aSmack's version of Smack's PacketCollector. The result queue is a lock-free
+ * queue, the reader thread adding a packet doesn't contend with the thread
+ * waiting for it. What happens when the queue is full is chosen with
+ * {@link #setOverflowPolicy(OverflowPolicy)}.
+ * <p>
+ * {@link #setMemoryLimit(XMPPConnection, long)} limits the estimated memory
+ * all collectors of a connection may hold and
+ * {@link #getLargestCollectors(XMPPConnection, int)} reports the collectors
+ * holding the most. The size of a packet is only estimated while the
+ * connection has a limit or {@link #setMemoryAccounting(XMPPConnection, boolean)}
+ * is enabled, the estimate serializes the packet. The memory of a connection
+ * is a running total, no lock is taken for a packet.
+ *
+ * @see XMPPConnection#createPacketCollector(PacketFilter)
+ * @author Matt Tucker
+ */
+public class PacketCollector {
+
+    private static final Logger LOGGER = Logger.getLogger(PacketCollector.class.getName());
+
+    /**
+     * The estimated memory of a packet besides the characters of its XML, in
+     * bytes.
+     */
+    private static final int PACKET_OVERHEAD = 64;
+
+    /**
+     * What a collector does with a packet when its queue is full or the
+     * memory limit of its connection is reached.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drops the oldest queued packets, Smack's behavior.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drops the new packet.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Blocks the reader thread of the connection until the queue has
+         * space, for at most the packet reply timeout, then drops the new
+         * packet. Only applies to a full queue, a packet exceeding the memory
+         * limit is dropped.
+         */
+        BLOCK
+    }
+
+    private static final Map<XMPPConnection, Budget> budgets = new WeakHashMap<XMPPConnection, Budget>();
+
+    private PacketFilter packetFilter;
+    private final ConcurrentLinkedQueue<Entry> resultQueue = new ConcurrentLinkedQueue<Entry>();
+    private final Semaphore results = new Semaphore(0);
+    private final Semaphore space;
+    private final AtomicLong memory = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Budget budget;
+    private XMPPConnection connection;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
+     * all packets will match this collector.
+     *
+     * @param conection the connection the collector is tied to.
+     * @param packetFilter determines which packets will be returned by this collector.
+     */
+    protected PacketCollector(XMPPConnection conection, PacketFilter packetFilter) {
+        this(conection, packetFilter, SmackConfiguration.getPacketCollectorSize());
+    }
+
+    /**
+     * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
+     * all packets will match this collector.
+     *
+     * @param conection the connection the collector is tied to.
+     * @param packetFilter determines which packets will be returned by this collector.
+     * @param maxSize the maximum number of packets that will be stored in the collector.
+     */
+    protected PacketCollector(XMPPConnection conection, PacketFilter packetFilter, int maxSize) {
+        this.connection = conection;
+        this.packetFilter = packetFilter;
+        this.space = new Semaphore(maxSize);
+        this.budget = getBudget(conection);
+        budget.add(this);
+    }
+
+    /**
+     * Explicitly cancels the packet collector so that no more results are
+     * queued up. Once a packet collector has been cancelled, it cannot be
+     * re-enabled. Instead, a new packet collector must be created.
+     */
+    public void cancel() {
+        // If the packet collector has already been cancelled, do nothing.
+        if (!cancelled) {
+            cancelled = true;
+            budget.remove(this);
+            connection.removePacketCollector(this);
+            // Packets still queued no longer count against the connection
+            for (Entry entry : resultQueue) {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Adds a collector created by a subclass to its connection, like
+     * {@link XMPPConnection#createPacketCollector(PacketFilter)} does. The
+     * connection passes the incoming packets to {@link #processPacket(Packet)}
+     * on its reader thread.
+     */
+    protected void register() {
+        connection.collectors.add(this);
+    }
+
+    /**
+     * Returns the packet filter associated with this packet collector. The packet
+     * filter is used to determine what packets are queued as results.
+     *
+     * @return the packet filter.
+     */
+    public PacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    /**
+     * Sets what happens to packets that don't fit into the queue.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the estimated memory held by the queued packets in bytes, 0
+     * if the memory of the connection is not accounted.
+     */
+    public long getMemoryUsage() {
+        return memory.get();
+    }
+
+    /**
+     * Returns the number of queued packets.
+     */
+    public int getQueueSize() {
+        return results.availablePermits();
+    }
+
+    /**
+     * Returns the number of packets dropped because the queue was full or
+     * the memory limit was reached.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Polls to see if a packet is currently available and returns it, or
+     * immediately returns <tt>null</tt> if no packets are currently in the
+     * result queue.
+     *
+     * @return the next packet result, or <tt>null</tt> if there are no more
+     *      results.
+     */
+    public Packet pollResult() {
+        if (!results.tryAcquire()) {
+            return null;
+        }
+        return take();
+    }
+
+    /**
+     * Returns the next available packet. The method call will block (not return)
+     * until a packet is available.
+     *
+     * @return the next available packet.
+     */
+    public Packet nextResultBlockForever() {
+        while (true) {
+            try {
+                results.acquire();
+                return take();
+            }
+            catch (InterruptedException e) {
+                LOGGER.log(Level.FINE, "nextResultBlockForever was interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the next available packet. The method call will block until the connection's default
+     * timeout has elapsed.
+     *
+     * @return the next availabe packet.
+     */
+    public Packet nextResult() {
+        return nextResult(connection.getPacketReplyTimeout());
+    }
+
+    /**
+     * Returns the next available packet. The method call will block (not return)
+     * until a packet is available or the <tt>timeout</tt> has elapased. If the
+     * timeout elapses without a result, <tt>null</tt> will be returned.
+     *
+     * @return the next available packet.
+     */
+    public Packet nextResult(long timeout) {
+        long remaining = timeout;
+        long start = System.currentTimeMillis();
+        while (remaining > 0) {
+            try {
+                if (results.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    return take();
+                }
+                return null;
+            }
+            catch (InterruptedException e) {
+                LOGGER.log(Level.FINE, "nextResult was interrupted", e);
+            }
+            remaining = timeout - (System.currentTimeMillis() - start);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next available packet. The method call will block until a packet is available or
+     * the connections reply timeout has elapsed. If the timeout elapses without a result,
+     * <tt>null</tt> will be returned. This method does also cancel the PacketCollector.
+     *
+     * @return the next available packet.
+     * @throws XMPPErrorException in case an error response.
+     * @throws NoResponseException if there was no response from the server.
+     */
+    public Packet nextResultOrThrow() throws NoResponseException, XMPPErrorException {
+        return nextResultOrThrow(connection.getPacketReplyTimeout());
+    }
+
+    /**
+     * Returns the next available packet. The method call will block until a packet is available or
+     * the <tt>timeout</tt> has elapsed. This method does also cancel the PacketCollector.
+     *
+     * @param timeout the amount of time to wait for the next packet (in milleseconds).
+     * @return the next available packet.
+     * @throws NoResponseException if there was no response from the server.
+     * @throws XMPPErrorException in case an error response.
+     */
+    public Packet nextResultOrThrow(long timeout) throws NoResponseException, XMPPErrorException {
+        Packet result = nextResult(timeout);
+        cancel();
+        if (result == null) {
+            throw new NoResponseException();
+        }
+
+        XMPPError xmppError = result.getError();
+        if (xmppError != null) {
+            throw new XMPPErrorException(xmppError);
+        }
+
+        return result;
+    }
+
+    /**
+     * Processes a packet to see if it meets the criteria for this packet collector.
+     * If so, the packet is added to the result queue.
+     *
+     * @param packet the packet to process.
+     */
+    protected void processPacket(Packet packet) {
+        if (packet == null) {
+            return;
+        }
+
+        if (packetFilter == null || packetFilter.accept(packet)) {
+            if (!reserveSpace()) {
+                drop(packet, "queue is full");
+                return;
+            }
+            Entry entry = new Entry(packet, budget.isAccounting() ? estimateSize(packet) : 0);
+            if (!reserveMemory(entry.size)) {
+                space.release();
+                drop(packet, "memory limit of " + budget.limit + " bytes reached");
+                return;
+            }
+            resultQueue.add(entry);
+            results.release();
+            if (cancelled) {
+                // cancel() may have missed the entry
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Takes a queued packet, a permit of results must have been acquired.
+     */
+    private Packet take() {
+        Entry entry = resultQueue.poll();
+        release(entry);
+        space.release();
+        return entry.packet;
+    }
+
+    /**
+     * Removes the memory of an entry from the totals, once.
+     */
+    private void release(Entry entry) {
+        if (entry.size != 0 && Entry.RELEASED.compareAndSet(entry, 0, 1)) {
+            memory.addAndGet(-entry.size);
+            budget.usage.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     * Acquires a permit of space according to the overflow policy.
+     */
+    private boolean reserveSpace() {
+        while (!space.tryAcquire()) {
+            switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // The consumer may take the oldest packet first, then the space is free
+                if (results.tryAcquire()) {
+                    take();
+                    dropped.incrementAndGet();
+                }
+                break;
+            case BLOCK:
+                try {
+                    return space.tryAcquire(connection.getPacketReplyTimeout(), TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Accounts size bytes, dropping the oldest packets to stay within the
+     * memory limit if the overflow policy allows it.
+     */
+    private boolean reserveMemory(long size) {
+        if (size == 0) {
+            return true;
+        }
+        memory.addAndGet(size);
+        budget.usage.addAndGet(size);
+        long limit = budget.limit;
+        if (limit <= 0) {
+            return true;
+        }
+        while (budget.usage.get() > limit) {
+            if (overflowPolicy != OverflowPolicy.DROP_OLDEST || !results.tryAcquire()) {
+                memory.addAndGet(-size);
+                budget.usage.addAndGet(-size);
+                return false;
+            }
+            take();
+            dropped.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void drop(Packet packet, String reason) {
+        dropped.incrementAndGet();
+        LOGGER.fine("Dropping packet " + packet.getPacketID() + " from " + this + ", " + reason);
+    }
+
+    private static long estimateSize(Packet packet) {
+        try {
+            // The characters of the XML, about the size of the parsed packet
+            return PACKET_OVERHEAD + 2L * packet.toXML().length();
+        }
+        catch (RuntimeException e) {
+            return PACKET_OVERHEAD;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PacketCollector(" + packetFilter + ", " + getQueueSize() + " packets, " + memory.get() + " bytes)";
+    }
+
+    /**
+     * Limits the estimated memory all collectors of a connection may hold.
+     * Collectors beyond the limit drop their oldest packets, or the new one
+     * if their overflow policy isn't DROP_OLDEST. A limit enables the
+     * memory accounting of the connection, packets queued before are not
+     * counted.
+     *
+     * @param limit the limit in bytes, 0 for no limit
+     */
+    public static void setMemoryLimit(XMPPConnection connection, long limit) {
+        getBudget(connection).limit = limit;
+    }
+
+    public static long getMemoryLimit(XMPPConnection connection) {
+        return getBudget(connection).limit;
+    }
+
+    /**
+     * Enables the memory accounting of a connection without a limit, for
+     * {@link #getMemoryUsage(XMPPConnection)} and
+     * {@link #getLargestCollectors(XMPPConnection, int)}. Packets queued
+     * before are not counted.
+     */
+    public static void setMemoryAccounting(XMPPConnection connection, boolean enabled) {
+        getBudget(connection).accounting = enabled;
+    }
+
+    /**
+     * Returns true if the sizes of the packets collected for a connection are
+     * estimated, because of a limit or {@link #setMemoryAccounting(XMPPConnection, boolean)}.
+     */
+    public static boolean isMemoryAccounting(XMPPConnection connection) {
+        return getBudget(connection).isAccounting();
+    }
+
+    /**
+     * Returns the estimated memory held by all active collectors of a
+     * connection in bytes.
+     */
+    public static long getMemoryUsage(XMPPConnection connection) {
+        return getBudget(connection).usage.get();
+    }
+
+    /**
+     * Returns the active collectors of a connection holding the most memory,
+     * largest first.
+     *
+     * @param count the maximum number of collectors to return
+     */
+    public static List<PacketCollector> getLargestCollectors(XMPPConnection connection, int count) {
+        List<PacketCollector> collectors = getBudget(connection).getCollectors();
+        final Map<PacketCollector, Long> usage = new HashMap<PacketCollector, Long>();
+        for (PacketCollector collector : collectors) {
+            usage.put(collector, collector.getMemoryUsage());
+        }
+        Collections.sort(collectors, new Comparator<PacketCollector>() {
+            @Override
+            public int compare(PacketCollector a, PacketCollector b) {
+                long difference = usage.get(b) - usage.get(a);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        return collectors.subList(0, Math.min(count, collectors.size()));
+    }
+
+    private static Budget getBudget(XMPPConnection connection) {
+        synchronized (budgets) {
+            Budget budget = budgets.get(connection);
+            if (budget == null) {
+                budget = new Budget();
+                budgets.put(connection, budget);
+            }
+            return budget;
+        }
+    }
+
+    /**
+     * The active collectors of a connection, their memory and its limit.
+     */
+    private static final class Budget {
+        // Weak keys, a collector references the connection, which is the weak key of budgets
+        private final Map<PacketCollector, Boolean> collectors = new WeakHashMap<PacketCollector, Boolean>();
+        private final AtomicLong usage = new AtomicLong();
+        private volatile long limit;
+        private volatile boolean accounting;
+
+        private boolean isAccounting() {
+            return accounting || limit > 0;
+        }
+
+        private synchronized void add(PacketCollector collector) {
+            collectors.put(collector, Boolean.TRUE);
+        }
+
+        private synchronized void remove(PacketCollector collector) {
+            collectors.remove(collector);
+        }
+
+        private synchronized List<PacketCollector> getCollectors() {
+            return new ArrayList<PacketCollector>(collectors.keySet());
+        }
+    }
+
+    private static final class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> RELEASED = AtomicIntegerFieldUpdater.newUpdater(
+                        Entry.class, "released");
+
+        private final Packet packet;
+        private final long size;
+        private volatile int released;
+
+        private Entry(Packet packet, long size) {
+            this.packet = packet;
+            this.size = size;
+        }
+    }
+}
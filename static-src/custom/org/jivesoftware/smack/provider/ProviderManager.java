@@ -0,0 +1,341 @@
+/**
+ *
+ * Copyright 2003-2007 Jive Software.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.provider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.PacketExtension;
+
+/**
+ * Manages providers for parsing custom XML sub-documents of XMPP packets.
+ * <p>
+ * aSmack's version of Smack's ProviderManager. Besides provider instances and
+ * classes it accepts lazy registrations of a class name, see
+ * {@link #addLazyIQProvider(String, String, String)}. The class of a lazy
+ * provider is loaded and instantiated the first time a matching element is
+ * parsed, the result is cached. The compiled providers files of aSmack's
+ * build (see de.measite.smack.CompiledInitializer) register all providers
+ * lazily, so only the providers of the namespaces a session actually sees
+ * are loaded. {@link #getUnusedIQProviders()} and
+ * {@link #getUnusedExtensionProviders()} report the providers that were
+ * never needed.
+ */
+public final class ProviderManager {
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderManager.class.getName());
+
+    private static final Map<String, Object> extensionProviders = new ConcurrentHashMap<String, Object>();
+    private static final Map<String, Object> iqProviders = new ConcurrentHashMap<String, Object>();
+
+    private static final Map<String, String> lazyExtensionProviders = new ConcurrentHashMap<String, String>();
+    private static final Map<String, String> lazyIQProviders = new ConcurrentHashMap<String, String>();
+
+    public static synchronized void addLoader(ProviderLoader loader) {
+        if (loader.getIQProviderInfo() != null) {
+            for (IQProviderInfo info : loader.getIQProviderInfo()) {
+                String key = getProviderKey(info.getElementName(), info.getNamespace());
+                lazyIQProviders.remove(key);
+                iqProviders.put(key, info.getProvider());
+            }
+        }
+
+        if (loader.getExtensionProviderInfo() != null) {
+            for (ExtensionProviderInfo info : loader.getExtensionProviderInfo()) {
+                String key = getProviderKey(info.getElementName(), info.getNamespace());
+                lazyExtensionProviders.remove(key);
+                extensionProviders.put(key, info.getProvider());
+            }
+        }
+    }
+
+    /**
+     * Returns the IQ provider registered to the specified XML element name and namespace.
+     * A lazily registered provider is loaded by this method.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @return the IQ provider, either an IQProvider instance or an IQ class.
+     */
+    public static Object getIQProvider(String elementName, String namespace) {
+        String key = getProviderKey(elementName, namespace);
+        Object provider = iqProviders.get(key);
+        if (provider == null && !lazyIQProviders.isEmpty()) {
+            provider = resolveIQProvider(key);
+        }
+        return provider;
+    }
+
+    /**
+     * Returns an unmodifiable collection of all IQProvider instances. Each object
+     * in the collection will either be an IQProvider instance, or a Class object
+     * that implements the IQProvider interface. All lazily registered providers
+     * are loaded by this method.
+     *
+     * @return all IQProvider instances.
+     */
+    public static Collection<Object> getIQProviders() {
+        for (String key : lazyIQProviders.keySet()) {
+            resolveIQProvider(key);
+        }
+        return Collections.unmodifiableCollection(iqProviders.values());
+    }
+
+    /**
+     * Adds an IQ provider (must be an instance of IQProvider or Class object that is an IQ)
+     * with the specified element name and name space. The provider will override any providers
+     * loaded through this class' loaders.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param provider the IQ provider.
+     */
+    public static synchronized void addIQProvider(String elementName, String namespace,
+            Object provider)
+    {
+        if (!(provider instanceof IQProvider || (provider instanceof Class &&
+                IQ.class.isAssignableFrom((Class<?>)provider))))
+        {
+            throw new IllegalArgumentException("Provider must be an IQProvider " +
+                    "or a Class instance sublcassing IQ.");
+        }
+        String key = getProviderKey(elementName, namespace);
+        lazyIQProviders.remove(key);
+        iqProviders.put(key, provider);
+    }
+
+    /**
+     * Adds an IQ provider that is loaded the first time it is needed. The class
+     * must either implement IQProvider and have a public no-arg constructor or
+     * be a subclass of IQ.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param className the class name of the IQ provider.
+     */
+    public static synchronized void addLazyIQProvider(String elementName, String namespace, String className) {
+        String key = getProviderKey(elementName, namespace);
+        iqProviders.remove(key);
+        lazyIQProviders.put(key, className);
+    }
+
+    /**
+     * Removes an IQ provider with the specified element name and namespace. This
+     * method is typically called to cleanup providers that are programmatically added
+     * using the {@link #addIQProvider(String, String, Object) addIQProvider} method.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     */
+    public static synchronized void removeIQProvider(String elementName, String namespace) {
+        String key = getProviderKey(elementName, namespace);
+        lazyIQProviders.remove(key);
+        iqProviders.remove(key);
+    }
+
+    /**
+     * Returns the packet extension provider registered to the specified XML element name
+     * and namespace. A lazily registered provider is loaded by this method.
+     *
+     * @param elementName element name associated with extension provider.
+     * @param namespace namespace associated with extension provider.
+     * @return the extension provider, either a PacketExtensionProvider instance or a
+     *         PacketExtension class.
+     */
+    public static Object getExtensionProvider(String elementName, String namespace) {
+        String key = getProviderKey(elementName, namespace);
+        Object provider = extensionProviders.get(key);
+        if (provider == null && !lazyExtensionProviders.isEmpty()) {
+            provider = resolveExtensionProvider(key);
+        }
+        return provider;
+    }
+
+    /**
+     * Adds an extension provider with the specified element name and name space. The provider
+     * will override any providers loaded through this class' loaders. The provider must be
+     * either a PacketExtensionProvider instance, or a Class object of a Javabean.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param provider the extension provider.
+     */
+    public static synchronized void addExtensionProvider(String elementName, String namespace,
+            Object provider)
+    {
+        if (!(provider instanceof PacketExtensionProvider || provider instanceof Class)) {
+            throw new IllegalArgumentException("Provider must be a PacketExtensionProvider " +
+                    "or a Class instance.");
+        }
+        String key = getProviderKey(elementName, namespace);
+        lazyExtensionProviders.remove(key);
+        extensionProviders.put(key, provider);
+    }
+
+    /**
+     * Adds an extension provider that is loaded the first time it is needed. The
+     * class must either implement PacketExtensionProvider and have a public no-arg
+     * constructor or be a PacketExtension Javabean.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param className the class name of the extension provider.
+     */
+    public static synchronized void addLazyExtensionProvider(String elementName, String namespace, String className) {
+        String key = getProviderKey(elementName, namespace);
+        extensionProviders.remove(key);
+        lazyExtensionProviders.put(key, className);
+    }
+
+    /**
+     * Removes an extension provider with the specified element name and namespace. This
+     * method is typically called to cleanup providers that are programmatically added
+     * using the {@link #addExtensionProvider(String, String, Object) addExtensionProvider} method.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     */
+    public static synchronized void removeExtensionProvider(String elementName, String namespace) {
+        String key = getProviderKey(elementName, namespace);
+        lazyExtensionProviders.remove(key);
+        extensionProviders.remove(key);
+    }
+
+    /**
+     * Returns an unmodifiable collection of all PacketExtensionProvider instances. Each object
+     * in the collection will either be a PacketExtensionProvider instance, or a Class object
+     * that implements the PacketExtensionProvider interface. All lazily registered providers
+     * are loaded by this method.
+     *
+     * @return all PacketExtensionProvider instances.
+     */
+    public static Collection<Object> getExtensionProviders() {
+        for (String key : lazyExtensionProviders.keySet()) {
+            resolveExtensionProvider(key);
+        }
+        return Collections.unmodifiableCollection(extensionProviders.values());
+    }
+
+    /**
+     * Returns the lazily registered IQ providers that were never needed so far.
+     *
+     * @return a map from "elementName#namespace" to the class name of the provider.
+     */
+    public static Map<String, String> getUnusedIQProviders() {
+        return Collections.unmodifiableMap(new HashMap<String, String>(lazyIQProviders));
+    }
+
+    /**
+     * Returns the lazily registered extension providers that were never needed so far.
+     *
+     * @return a map from "elementName#namespace" to the class name of the provider.
+     */
+    public static Map<String, String> getUnusedExtensionProviders() {
+        return Collections.unmodifiableMap(new HashMap<String, String>(lazyExtensionProviders));
+    }
+
+    private static Object resolveIQProvider(String key) {
+        String className = lazyIQProviders.get(key);
+        if (className == null) {
+            // Not lazily registered or resolved concurrently
+            return iqProviders.get(key);
+        }
+        Object provider = null;
+        try {
+            Class<?> providerClass = Class.forName(className);
+            if (IQProvider.class.isAssignableFrom(providerClass)) {
+                provider = providerClass.newInstance();
+            }
+            else if (IQ.class.isAssignableFrom(providerClass)) {
+                provider = providerClass;
+            }
+            else {
+                LOGGER.severe("Lazy IQ provider " + className + " is neither an IQProvider nor an IQ");
+            }
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Could not load provider class " + className, e);
+        }
+        return publish(key, className, provider, iqProviders, lazyIQProviders);
+    }
+
+    private static Object resolveExtensionProvider(String key) {
+        String className = lazyExtensionProviders.get(key);
+        if (className == null) {
+            return extensionProviders.get(key);
+        }
+        Object provider = null;
+        try {
+            Class<?> providerClass = Class.forName(className);
+            if (PacketExtensionProvider.class.isAssignableFrom(providerClass)) {
+                provider = providerClass.newInstance();
+            }
+            else if (PacketExtension.class.isAssignableFrom(providerClass)) {
+                provider = providerClass;
+            }
+            else {
+                LOGGER.severe("Lazy extension provider " + className
+                                + " is neither a PacketExtensionProvider nor a PacketExtension");
+            }
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Could not load provider class " + className, e);
+        }
+        return publish(key, className, provider, extensionProviders, lazyExtensionProviders);
+    }
+
+    /**
+     * Registers a loaded lazy provider. The registrations are changed with the
+     * same lock, so a provider added meanwhile is never overwritten.
+     */
+    private static synchronized Object publish(String key, String className, Object provider,
+                    Map<String, Object> providers, Map<String, String> lazyProviders) {
+        // Only publish if the registration wasn't replaced in the meantime
+        if (!className.equals(lazyProviders.get(key))) {
+            return providers.get(key);
+        }
+        lazyProviders.remove(key);
+        // Never replace a provider that is already registered
+        Object registered = providers.get(key);
+        if (registered != null) {
+            return registered;
+        }
+        if (provider != null) {
+            providers.put(key, provider);
+        }
+        return provider;
+    }
+
+    /**
+     * Returns a String key for a given element name and namespace.
+     *
+     * @param elementName the element name.
+     * @param namespace the namespace.
+     * @return a unique key for the element name and namespace pair.
+     */
+    private static String getProviderKey(String elementName, String namespace) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(elementName).append('#').append(namespace);
+        return buf.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package de.measite.smack.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromMatchesFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+import de.measite.smack.IndexedPacketDispatcher;
+
+/**
+ * Compares Smack's dispatch, evaluating the filter of every listener, with
+ * the IndexedPacketDispatcher.
+ * <p>
+ * Usage: DispatchBenchmark &lt;listeners&gt; &lt;packets&gt;
+ * <p>
+ * The listeners are a mix of the filters the managers of smack-extensions
+ * use: extension filters, from filters, message filters combined with a
+ * from filter and some unindexed filters. The packets are messages and
+ * presences from random contacts with random extensions.
+ */
+public class DispatchBenchmark {
+
+    private static final int NAMESPACES = 50;
+    private static final int CONTACTS = 200;
+
+    private static long delivered;
+
+    public static void main(String[] args) throws Exception {
+        int listenerCount = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+        int packetCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        Random random = new Random(42);
+        PacketListener listener = new PacketListener() {
+            @Override
+            public void processPacket(Packet packet) {
+                delivered++;
+            }
+        };
+        List<PacketFilter> filters = new ArrayList<PacketFilter>();
+        IndexedPacketDispatcher dispatcher = new IndexedPacketDispatcher();
+        for (int i = 0; i < listenerCount; i++) {
+            PacketFilter filter;
+            PacketFilter indexedFilter;
+            switch (i % 10) {
+            case 0: case 1: case 2: case 3:
+                String namespace = namespace(random.nextInt(NAMESPACES));
+                filter = new PacketExtensionFilter("x", namespace);
+                indexedFilter = IndexedPacketDispatcher.extensionFilter("x", namespace);
+                break;
+            case 4: case 5: case 6:
+                String contact = contact(random.nextInt(CONTACTS));
+                filter = FromMatchesFilter.create(contact);
+                indexedFilter = IndexedPacketDispatcher.fromFilter(contact);
+                break;
+            case 7: case 8:
+                contact = contact(random.nextInt(CONTACTS));
+                filter = new AndFilter(new PacketTypeFilter(Message.class), FromMatchesFilter.create(contact));
+                indexedFilter = IndexedPacketDispatcher.and(IndexedPacketDispatcher.fromFilter(contact),
+                                new PacketTypeFilter(Message.class));
+                break;
+            default:
+                filter = new PacketTypeFilter(Presence.class);
+                indexedFilter = filter;
+                break;
+            }
+            filters.add(filter);
+            // One listener instance per registration
+            dispatcher.addPacketListener(counter(), indexedFilter);
+        }
+
+        List<Packet> packets = new ArrayList<Packet>(packetCount);
+        for (int i = 0; i < packetCount; i++) {
+            Packet packet = random.nextBoolean() ? new Message() : new Presence(Presence.Type.available);
+            packet.setFrom(contact(random.nextInt(CONTACTS)) + "/res");
+            packet.addExtension(new DefaultPacketExtension("x", namespace(random.nextInt(NAMESPACES))));
+            packets.add(packet);
+        }
+
+        System.out.println(listenerCount + " listeners (" + dispatcher.getIndexedListenerCount() + " indexed), "
+                        + packetCount + " packets");
+        for (int round = 0; round < 3; round++) {
+            delivered = 0;
+            long start = System.nanoTime();
+            for (Packet packet : packets) {
+                for (PacketFilter filter : filters) {
+                    if (filter.accept(packet)) {
+                        listener.processPacket(packet);
+                    }
+                }
+            }
+            long smack = System.nanoTime() - start;
+            long smackDelivered = delivered;
+
+            delivered = 0;
+            start = System.nanoTime();
+            for (Packet packet : packets) {
+                dispatcher.dispatch(packet);
+            }
+            long indexed = System.nanoTime() - start;
+
+            System.out.println("every filter: " + smack / packetCount + " ns/packet, indexed: " + indexed
+                            / packetCount + " ns/packet (" + smackDelivered + "/" + delivered + " deliveries)");
+        }
+    }
+
+    private static PacketListener counter() {
+        return new PacketListener() {
+            @Override
+            public void processPacket(Packet packet) {
+                delivered++;
+            }
+        };
+    }
+
+    private static String namespace(int i) {
+        return "urn:example:ns" + i;
+    }
+
+    private static String contact(int i) {
+        return "contact" + i + "@example.org";
+    }
+}
@@ -0,0 +1,156 @@
+package de.measite.smack.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Replays recorded XMPP streams through XmlPullParser implementations and
+ * reports their throughput.
+ * <p>
+ * Usage: ParserBenchmark &lt;iterations&gt; &lt;factories&gt; &lt;stream files...&gt;
+ * <p>
+ * The factories are a comma separated list of XmlPullParserFactory or
+ * XmlPullParser class names, "default" uses XmlPullParserFactory.newInstance()
+ * like Smack does. This is the same mechanism Smack uses to pick its parser,
+ * so a faster backend can be tried here and then selected with the
+ * org.xmlpull.v1.XmlPullParserFactory system property. A stream file contains
+ * the received side of an XMPP stream, stanzas without a stream header are
+ * wrapped in one. The streams are parsed through a Reader with namespace
+ * processing on, like Smack's PacketReader does.
+ */
+public class ParserBenchmark {
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+                    + " xmlns:stream='http://etherx.jabber.org/streams'>";
+
+    private static final String STREAM_FOOTER = "</stream:stream>";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ParserBenchmark <iterations> <factories> <stream files...>");
+            System.exit(1);
+        }
+        int iterations = Integer.parseInt(args[0]);
+        List<byte[]> streams = new ArrayList<byte[]>();
+        for (int i = 2; i < args.length; i++) {
+            streams.add(readStream(new File(args[i])));
+        }
+
+        for (String factoryName : args[1].split(",")) {
+            XmlPullParserFactory factory;
+            if ("default".equals(factoryName)) {
+                factory = XmlPullParserFactory.newInstance();
+            }
+            else {
+                factory = XmlPullParserFactory.newInstance(factoryName, null);
+            }
+            factory.setNamespaceAware(true);
+
+            // Warm up
+            for (byte[] stream : streams) {
+                parse(factory, stream);
+            }
+
+            long stanzas = 0;
+            long bytes = 0;
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (byte[] stream : streams) {
+                    stanzas += parse(factory, stream);
+                    bytes += stream.length;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(factoryName).append(" (").append(factory.newPullParser().getClass().getName()).append("): ");
+            sb.append(stanzas * 1000000000L / Math.max(nanos, 1)).append(" stanzas/s, ");
+            sb.append(bytes * 1000L / Math.max(nanos, 1)).append(" MB/s");
+            if (allocatedBefore >= 0 && stanzas > 0) {
+                sb.append(", ").append(allocated / stanzas).append(" bytes allocated per stanza");
+            }
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * Parses a stream and returns the number of stanzas, i.e. the number of
+     * children of the stream element.
+     */
+    private static int parse(XmlPullParserFactory factory, byte[] stream) throws Exception {
+        XmlPullParser parser = factory.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(stream), "UTF-8");
+        parser.setInput(reader);
+        int stanzas = 0;
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                // Touch the attributes like the providers do
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    parser.getAttributeValue(i);
+                }
+            }
+            else if (eventType == XmlPullParser.END_TAG && parser.getDepth() == 2) {
+                stanzas++;
+            }
+            eventType = parser.next();
+        }
+        return stanzas;
+    }
+
+    private static byte[] readStream(File file) throws Exception {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                int count = in.read(content, read, content.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        }
+        finally {
+            in.close();
+        }
+        String stream = new String(content, "UTF-8");
+        if (stream.indexOf("<stream:stream") < 0) {
+            stream = STREAM_HEADER + stream + STREAM_FOOTER;
+        }
+        else if (stream.indexOf(STREAM_FOOTER) < 0) {
+            stream = stream + STREAM_FOOTER;
+        }
+        return stream.getBytes("UTF-8");
+    }
+
+    /**
+     * Returns the bytes allocated by this thread, or -1 if the VM can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            // Not available on every VM
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                            "getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        }
+        catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package de.measite.smack.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compiles the XML configuration and providers files of a Smack module into
+ * Java sources, see de.measite.smack.CompiledInitializer.
+ * <p>
+ * Usage: RegistryGenerator &lt;module classes&gt; &lt;classpath&gt; &lt;output directory&gt;
+ * <p>
+ * The module classes directory must already contain the compiled classes and
+ * the resources of the module. The classpath is used to check that a listed
+ * provider class is a provider or an IQ/PacketExtension bean and whether the
+ * generated code can reference a startup class directly. Providers are
+ * registered by class name and loaded lazily by the ProviderManager.
+ */
+public class RegistryGenerator {
+
+    private static final String SMACK_CONFIG = "org.jivesoftware.smack/smack-config.xml";
+
+    private static final String GENERATED_CONFIGURATION = "org.jivesoftware.smack.GeneratedSmackConfiguration";
+
+    private static final String CLASSPATH_URL = "classpath:";
+
+    private final File moduleDir;
+    private final File outputDir;
+    private final ClassLoader loader;
+
+    private RegistryGenerator(File moduleDir, ClassLoader loader, File outputDir) {
+        this.moduleDir = moduleDir;
+        this.loader = loader;
+        this.outputDir = outputDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: RegistryGenerator <module classes> <classpath> <output directory>");
+            System.exit(1);
+        }
+        String[] path = args[1].split(File.pathSeparator);
+        List<URL> urls = new ArrayList<URL>(path.length);
+        for (String entry : path) {
+            if (entry.length() > 0) {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]),
+                        ClassLoader.getSystemClassLoader().getParent());
+        new RegistryGenerator(new File(args[0]), loader, new File(args[2])).generate();
+    }
+
+    private void generate() throws Exception {
+        Class<?> urlInitializer = load("org.jivesoftware.smack.initializer.UrlInitializer");
+        if (urlInitializer != null) {
+            generateInitializers(urlInitializer);
+        }
+
+        // Compiled last, so it can use the initializers compiled above
+        File smackConfig = new File(moduleDir, SMACK_CONFIG);
+        if (smackConfig.isFile()) {
+            write(GENERATED_CONFIGURATION, null, smackConfig);
+        }
+    }
+
+    private void generateInitializers(Class<?> urlInitializer) throws Exception {
+        Method getProvidersUrl = urlInitializer.getDeclaredMethod("getProvidersUrl");
+        Method getConfigUrl = urlInitializer.getDeclaredMethod("getConfigUrl");
+        getProvidersUrl.setAccessible(true);
+        getConfigUrl.setAccessible(true);
+        for (String className : initializerCandidates(moduleDir, "")) {
+            Class<?> initializer = load(className);
+            if (initializer == null || !urlInitializer.isAssignableFrom(initializer)
+                            || !isInstantiable(initializer)) {
+                continue;
+            }
+            Object instance = initializer.newInstance();
+            File providers = resource((String) getProvidersUrl.invoke(instance));
+            File config = resource((String) getConfigUrl.invoke(instance));
+            if (providers == null && config == null) {
+                System.out.println("Not compiling " + className + ", its resources are not part of this module");
+                continue;
+            }
+            write(generatedName(className), providers, config);
+        }
+    }
+
+    /**
+     * Returns the names of all top level classes below dir that look like an
+     * initializer.
+     */
+    private static List<String> initializerCandidates(File dir, String packagePrefix) {
+        List<String> classes = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return classes;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                classes.addAll(initializerCandidates(file, packagePrefix + name + '.'));
+            }
+            else if (name.endsWith("Initializer.class") && name.indexOf('$') < 0) {
+                classes.add(packagePrefix + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+        return classes;
+    }
+
+    private File resource(String url) {
+        if (url == null || !url.startsWith(CLASSPATH_URL)) {
+            return null;
+        }
+        File file = new File(moduleDir, url.substring(CLASSPATH_URL.length()));
+        return file.isFile() ? file : null;
+    }
+
+    private void write(String className, File providers, File config) throws Exception {
+        int lastDot = className.lastIndexOf('.');
+        String packageName = className.substring(0, lastDot);
+        String simpleName = className.substring(lastDot + 1);
+        File file = new File(outputDir, className.replace('.', File.separatorChar) + ".java");
+        file.getParentFile().mkdirs();
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("// Generated by aSmack's RegistryGenerator, do not edit.");
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("import java.util.List;");
+            out.println();
+            out.println("/**");
+            out.println(" * Compiled from " + (providers != null ? relative(providers) + " " : "")
+                            + (config != null ? relative(config) : "") + ".");
+            out.println(" */");
+            out.println("public final class " + simpleName + " extends de.measite.smack.CompiledInitializer {");
+            out.println();
+            out.println("    @Override");
+            out.println("    protected void registerProviders() {");
+            if (providers != null) {
+                writeProviders(out, parse(providers));
+            }
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    protected void loadStartupClasses(List<Exception> exceptions, ClassLoader classLoader) {");
+            if (config != null) {
+                Document document = parse(config);
+                writeStartupClasses(out, document, "startupClasses", false);
+                writeStartupClasses(out, document, "optionalStartupClasses", true);
+            }
+            out.println("    }");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+        System.out.println("Generated " + className);
+    }
+
+    private void writeProviders(PrintWriter out, Document document) {
+        NodeList children = document.getDocumentElement().getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node node = children.item(i);
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element element = (Element) node;
+            String type = element.getTagName();
+            String elementName = text(element, "elementName");
+            String namespace = text(element, "namespace");
+            String className = text(element, "className");
+            String key = literal(elementName) + ", " + literal(namespace);
+
+            String providerInterface;
+            String beanClass;
+            String method;
+            if ("iqProvider".equals(type)) {
+                providerInterface = "org.jivesoftware.smack.provider.IQProvider";
+                beanClass = "org.jivesoftware.smack.packet.IQ";
+                method = "iqProvider";
+            }
+            else if ("extensionProvider".equals(type)) {
+                providerInterface = "org.jivesoftware.smack.provider.PacketExtensionProvider";
+                beanClass = "org.jivesoftware.smack.packet.PacketExtension";
+                method = "extensionProvider";
+            }
+            else {
+                System.out.println("Invalid provider type found [" + type + "]");
+                continue;
+            }
+
+            // Registered lazily by name, the class is only checked here
+            Class<?> provider = load(className);
+            if (provider == null) {
+                System.out.println("Provider class " + className + " not found, registering it anyway");
+            }
+            else if (!(load(providerInterface).isAssignableFrom(provider) && isInstantiable(provider))
+                            && !load(beanClass).isAssignableFrom(provider)) {
+                System.out.println("Ignoring " + className + ", it's neither a provider nor a "
+                                + beanClass.substring(beanClass.lastIndexOf('.') + 1));
+                continue;
+            }
+            out.println("        " + method + "(" + key + ", " + literal(className) + ");");
+        }
+    }
+
+    private void writeStartupClasses(PrintWriter out, Document document, String listName, boolean optional) {
+        NodeList lists = document.getElementsByTagName(listName);
+        for (int i = 0; i < lists.getLength(); i++) {
+            NodeList classNames = ((Element) lists.item(i)).getElementsByTagName("className");
+            for (int j = 0; j < classNames.getLength(); j++) {
+                String className = classNames.item(j).getTextContent().trim();
+                out.println("        if (isEnabled(" + literal(className) + ")) {");
+                out.println("            " + startupStatement(className, optional));
+                out.println("        }");
+            }
+        }
+    }
+
+    private String startupStatement(String className, boolean optional) {
+        Class<?> generated = load(generatedName(className));
+        if (generated == null && new File(outputDir, generatedName(className).replace('.', File.separatorChar)
+                        + ".java").isFile()) {
+            // Compiled in this run, but not yet on the classpath
+            return "initializer(new " + generatedName(className) + "());";
+        }
+        if (generated != null && isAccessible(generated)) {
+            return "initializer(new " + generated.getCanonicalName() + "());";
+        }
+        Class<?> startupClass = load(className);
+        if (startupClass == null || !isAccessible(startupClass)) {
+            return "startupClassByName(" + literal(className) + ", " + optional + ", exceptions, classLoader);";
+        }
+        if (load("org.jivesoftware.smack.initializer.SmackInitializer").isAssignableFrom(startupClass)
+                        && isInstantiable(startupClass)) {
+            return "initializer(new " + startupClass.getCanonicalName() + "());";
+        }
+        return "startupClass(" + startupClass.getCanonicalName() + ".class, exceptions, classLoader);";
+    }
+
+    private Class<?> load(String className) {
+        try {
+            return Class.forName(className, false, loader);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private static boolean isAccessible(Class<?> clazz) {
+        for (Class<?> c = clazz; c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers()) || c.isAnonymousClass() || c.isLocalClass()) {
+                return false;
+            }
+            if (c.getEnclosingClass() != null && !Modifier.isStatic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInstantiable(Class<?> clazz) {
+        if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+            return false;
+        }
+        try {
+            Constructor<?> constructor = clazz.getConstructor();
+            return Modifier.isPublic(constructor.getModifiers());
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static String generatedName(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return className.substring(0, lastDot + 1) + "Generated" + className.substring(lastDot + 1);
+    }
+
+    private String relative(File file) {
+        return moduleDir.toURI().relativize(file.toURI()).getPath();
+    }
+
+    private static Document parse(File file) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(false);
+        return factory.newDocumentBuilder().parse(file);
+    }
+
+    private static String text(Element element, String childName) {
+        NodeList children = element.getElementsByTagName(childName);
+        if (children.getLength() == 0) {
+            return null;
+        }
+        return children.item(0).getTextContent().trim();
+    }
+
+    private static String literal(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}